@@ -1,10 +1,13 @@
 package jenkins.plugins.svnmerge;
 
+import hudson.Extension;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
 import hudson.model.Queue.Task;
 import hudson.model.ResourceList;
 import hudson.model.TaskAction;
@@ -12,11 +15,14 @@ import hudson.model.TaskListener;
 import hudson.model.TaskThread;
 import hudson.model.queue.AbstractQueueTask;
 import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.model.queue.ScheduleResult;
 import hudson.remoting.AsyncFutureImpl;
 import hudson.security.Permission;
 import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 
 import org.acegisecurity.AccessDeniedException;
 import org.kohsuke.stapler.StaplerRequest;
@@ -27,7 +33,10 @@ import javax.servlet.ServletException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -64,24 +73,116 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
      * Schedules the execution of this task.
      *
      * <p>
-     * This happens asynchronously.
+     * This happens asynchronously. If this action already has a task in the queue,
+     * the request is merged into that task (see {@link #merge(Object, Object)}) instead of
+     * queueing another one.
+     *
+     * <p>
+     * Telling if the task is a no-op may take round trips to the server before this returns,
+     * so request handlers go through {@link #doPerform(StaplerRequest, StaplerResponse)} instead.
+     *
+     * @return
+     *      Future that completes with null if the task turned out to be a no-op
+     *      and was never scheduled, or with an error if the queue refused it.
      */
     public Future<WorkerThread> performAsync(P param) throws IOException {
         getACL().checkPermission(getPermission());
-        TaskImpl task = createTask(param);
-        Jenkins.getInstance().getQueue().schedule(task, 0);
-        return task.future;
+        return schedule(param);
+    }
+
+    /**
+     * {@link #performAsync(Object)} without the permission check.
+     */
+    private Future<WorkerThread> schedule(P param) throws IOException {
+        if (isNoOp(param)) {
+            // nothing to do, so don't bother occupying an executor and the workspace
+            AsyncFutureImpl<WorkerThread> f = new AsyncFutureImpl<WorkerThread>();
+            f.set(null);
+            return f;
+        }
+        Queue q = Jenkins.getInstance().getQueue();
+        while (true) {
+            TaskImpl queued = getQueuedTask();
+            if (queued!=null && queued.getThread().merge(param)) {
+                FeatureBranchState.of(getProject()).onCoalesced();
+                return queued.future;
+            }
+
+            TaskImpl task = createTask(param);
+            ScheduleResult r = q.schedule2(task, 0);
+            if (r.isCreated()) {
+                task.getThread();   // let the page show that it's coming
+                return task.future;
+            }
+            if (r.isRefused()) {
+                // nobody is ever going to run it
+                task.future.set(new IOException("The queue refused to schedule "+task.getDisplayName()));
+                return task.future;
+            }
+            // someone else queued a task in the mean time. merge into that
+        }
+    }
+
+    /**
+     * Finds the task of this action that's waiting in the queue, if any.
+     */
+    private TaskImpl getQueuedTask() {
+        for (Queue.Item i : Jenkins.getInstance().getQueue().getItems()) {
+            if (i.task instanceof AbstractSvnmergeTaskAction.TaskImpl) {
+                AbstractSvnmergeTaskAction<?>.TaskImpl t = (AbstractSvnmergeTaskAction<?>.TaskImpl) i.task;
+                if (t.getAction()==this)
+                    return (TaskImpl) t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Combines the parameter of a task that's still in the queue with that of a newer request.
+     *
+     * <p>
+     * By default, the newer request wins.
+     *
+     * @return
+     *      The parameter the queued task will run with.
+     */
+    protected P merge(P queued, P newer) {
+        return newer;
     }
 
     protected abstract TaskImpl createTask(P param) throws IOException;
 
+    /**
+     * Checks if the task with the given parameter is known to be a no-op,
+     * in which case it won't be scheduled at all.
+     *
+     * <p>
+     * This runs before the task is queued, so it must not use the workspace.
+     */
+    protected boolean isNoOp(P param) throws IOException {
+        return false;
+    }
+
     protected abstract P createParams(StaplerRequest req) throws IOException;
 
     /**
      * Called from UI to commence this task.
+     *
+     * <p>
+     * The no-op check and the scheduling happen in the background, so that the request doesn't wait for the server.
      */
-    public synchronized void doPerform(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
-        performAsync(createParams(req));
+    public void doPerform(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        getACL().checkPermission(getPermission());
+        final P param = createParams(req);
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    schedule(param);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to schedule "+getDisplayName()+" of "+getProject().getFullDisplayName(), e);
+                }
+            }
+        });
         rsp.sendRedirect(".");
     }
 
@@ -98,7 +199,16 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
     protected abstract String decidePage();
 
     public final class WorkerThread extends TaskThread {
-        public final P param;
+        /**
+         * Replaced by newer requests until the task starts running.
+         */
+        public volatile P param;
+
+        /**
+         * Number of requests merged into this one.
+         */
+        private int coalesced;
+        private boolean started;
 
         public WorkerThread(P param) throws IOException {
             super(AbstractSvnmergeTaskAction.this, ListenerAndText.forFile(getLogFile(),AbstractSvnmergeTaskAction.this));
@@ -106,8 +216,30 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
             this.param = param;
         }
 
+        /**
+         * Merges a newer request into this task.
+         *
+         * @return
+         *      false if it's too late, because the task has already started.
+         */
+        /*package*/ synchronized boolean merge(P newer) {
+            if (started)    return false;
+            param = AbstractSvnmergeTaskAction.this.merge(param, newer);
+            coalesced++;
+            return true;
+        }
+
         protected void perform(TaskListener listener) throws Exception {
-            AbstractSvnmergeTaskAction.this.perform(listener,param);
+            P p;
+            int n;
+            synchronized (this) {
+                started = true;
+                p = param;
+                n = coalesced;
+            }
+            if (n>0)
+                listener.getLogger().printf("%d more request(s) were merged into this one while it was in the queue\n", n);
+            AbstractSvnmergeTaskAction.this.perform(listener,p);
         }
     }
 
@@ -116,11 +248,30 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
      */
     protected abstract class TaskImpl extends AbstractQueueTask {
         private final AsyncFutureImpl<WorkerThread> future = new AsyncFutureImpl<WorkerThread>();
-        private final WorkerThread thread;
+        private final P param;
+
+        /**
+         * Created once the task is in the queue, since that ties it with the action and starts the log.
+         */
+        private WorkerThread thread;
+
+        /**
+         * Nodes that have the workspace, in the order of preference. Computed when first needed.
+         */
+        private List<String> candidates;
 
         public TaskImpl(P param) throws IOException {
-            // do this now so that this gets tied with the action.
-            thread = new WorkerThread(param);
+            this.param = param;
+        }
+
+        /*package*/ synchronized WorkerThread getThread() throws IOException {
+            if (thread==null)
+                thread = new WorkerThread(param);
+            return thread;
+        }
+
+        /*package*/ AbstractSvnmergeTaskAction<P> getAction() {
+            return AbstractSvnmergeTaskAction.this;
         }
 
         public boolean isConcurrentBuild() {
@@ -136,12 +287,29 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
         }
 
         /**
-         * This has to run on the last workspace.
+         * Nodes that have the workspace of the project, the freshest one first.
+         *
+         * @see WorkspacePlacement#getCandidates(AbstractProject)
+         */
+        /*package*/ synchronized List<String> getCandidates() {
+            if (candidates==null)
+                candidates = WorkspacePlacement.getCandidates(getProject());
+            return candidates;
+        }
+
+        /**
+         * This has to run on one of the nodes that have the workspace.
+         * {@link QueueTaskDispatcherImpl} makes sure the freshest one available is used.
          */
         @Override
         public Label getAssignedLabel() {
-            Node node = getLastBuiltOn();
-            return node != null ? node.getSelfLabel() : null;
+            Label l = null;
+            for (String name : getCandidates()) {
+                Node n = WorkspacePlacement.getNode(name);
+                if (n==null)    continue;
+                l = l==null ? n.getSelfLabel() : l.or(n.getSelfLabel());
+            }
+            return l;
         }
 
         @Override
@@ -161,11 +329,19 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
                 }
 
                 public void run() {
+                    WorkspacePlacement.onStarted(getProject(), getCandidates());
+                    WorkerThread t;
+                    try {
+                        t = getThread();
+                    } catch (IOException e) {
+                        future.set(e);
+                        return;
+                    }
                     // run this synchronously
                     try {
-                        thread.run();
+                        t.run();
                     } finally {
-                        future.set(thread);
+                        future.set(t);
                     }
                 }
             };
@@ -188,11 +364,14 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
             return getProject().hashCode();
         }
 
+        /**
+         * Tasks of the same action are the same, so that the queue doesn't hold two of them.
+         */
         @Override
         public boolean equals(Object obj) {
             if (obj instanceof AbstractSvnmergeTaskAction.TaskImpl) {
-                TaskImpl that = (TaskImpl) obj;
-                return this.getProject()==that.getProject();
+                AbstractSvnmergeTaskAction<?>.TaskImpl that = (AbstractSvnmergeTaskAction<?>.TaskImpl) obj;
+                return this.getProject()==that.getProject() && this.getAction()==that.getAction();
             }
             return false;
         }
@@ -206,6 +385,10 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
         }
 
         public Node getLastBuiltOn() {
+            for (String name : getCandidates()) {
+                Node n = WorkspacePlacement.getNode(name);
+                if (n!=null)    return n;
+            }
             return null;
         }
 
@@ -232,4 +415,33 @@ public abstract class AbstractSvnmergeTaskAction<P> extends TaskAction {
             return true;
         }
     }
+
+    /**
+     * Keeps a merge task off a node with an older workspace while a node with a fresher one can take it.
+     */
+    @Extension
+    public static class QueueTaskDispatcherImpl extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, BuildableItem item) {
+            if (!(item.task instanceof AbstractSvnmergeTaskAction.TaskImpl))
+                return null;
+            List<String> candidates = ((AbstractSvnmergeTaskAction<?>.TaskImpl) item.task).getCandidates();
+            int i = candidates.indexOf(node.getNodeName());
+            for (int j=0; j<i; j++) {
+                final Node better = WorkspacePlacement.getNode(candidates.get(j));
+                Computer c = better==null ? null : better.toComputer();
+                if (c!=null && c.isOnline() && c.isAcceptingTasks() && c.countIdle()>0) {
+                    return new CauseOfBlockage() {
+                        @Override
+                        public String getShortDescription() {
+                            return "Waiting for "+better.getDisplayName()+", which has a fresher workspace";
+                        }
+                    };
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AbstractSvnmergeTaskAction.class.getName());
 }
@@ -0,0 +1,198 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of which jobs are feature branches of which upstream, and which jobs are upstreams,
+ * so that we don't have to look at every job in the system to find them.
+ *
+ * <p>
+ * The index is built when it's first used, and kept up to date as jobs are created, reconfigured,
+ * renamed, moved, and deleted.
+ */
+public final class BranchIndex {
+    /**
+     * Full name of the feature branch job to its {@link FeatureBranchProperty#getUpstream()}.
+     */
+    private static final Map<String,String> UPSTREAMS = new HashMap<String,String>();
+
+    /**
+     * Full names of the jobs that have {@link IntegratableProject}.
+     */
+    private static final Set<String> INTEGRATABLES = new TreeSet<String>();
+
+    private static boolean built;
+
+    private BranchIndex() {}
+
+    /**
+     * Gets the feature branches of the given upstream.
+     *
+     * @param upstream
+     *      Full name of the upstream job.
+     */
+    static List<AbstractProject<?,?>> getBranches(String upstream) {
+        List<String> names = new ArrayList<String>();
+        synchronized (BranchIndex.class) {
+            ensureBuilt();
+            for (Entry<String,String> e : UPSTREAMS.entrySet()) {
+                if (e.getValue().equals(upstream))
+                    names.add(e.getKey());
+            }
+        }
+        return resolve(names);
+    }
+
+    /**
+     * Gets the jobs that accept integrations.
+     */
+    static List<AbstractProject<?,?>> getIntegratableProjects() {
+        List<String> names;
+        synchronized (BranchIndex.class) {
+            ensureBuilt();
+            names = new ArrayList<String>(INTEGRATABLES);
+        }
+        return resolve(names);
+    }
+
+    /**
+     * Looks up the jobs outside the lock. Jobs that the current user can't see are skipped,
+     * just like {@link Jenkins#getAllItems(Class)} does.
+     */
+    private static List<AbstractProject<?,?>> resolve(List<String> names) {
+        List<AbstractProject<?,?>> r = new ArrayList<AbstractProject<?,?>>();
+        Jenkins j = Jenkins.getInstance();
+        for (String n : names) {
+            AbstractProject<?,?> p = j.getItemByFullName(n, AbstractProject.class);
+            if (p!=null)
+                r.add(p);
+        }
+        return r;
+    }
+
+    private static void ensureBuilt() {
+        if (!built)
+            rebuild();
+    }
+
+    /**
+     * Looks at every job in the system, which we only do when Jenkins loads the jobs.
+     */
+    static synchronized void rebuild() {
+        UPSTREAMS.clear();
+        INTEGRATABLES.clear();
+        // the index is shared by all users, so it needs to see every job
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (AbstractProject<?,?> p : Jenkins.getInstance().getAllItems(AbstractProject.class))
+                index(p);
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        built = true;
+    }
+
+    private static synchronized void update(Item item) {
+        if (!built)     return;     // will be picked up when the index is built
+        remove(item.getFullName(), false);
+        if (item instanceof AbstractProject)
+            index((AbstractProject<?,?>) item);
+    }
+
+    private static void index(AbstractProject<?,?> p) {
+        FeatureBranchProperty fbp = p.getProperty(FeatureBranchProperty.class);
+        if (fbp!=null)
+            UPSTREAMS.put(p.getFullName(), fbp.getUpstream());
+        if (p.getProperty(IntegratableProject.class)!=null)
+            INTEGRATABLES.add(p.getFullName());
+    }
+
+    /**
+     * @param children
+     *      Also remove the jobs inside, if the item is a folder.
+     */
+    private static synchronized void remove(String fullName, boolean children) {
+        UPSTREAMS.remove(fullName);
+        INTEGRATABLES.remove(fullName);
+        if (!children)  return;
+
+        String prefix = fullName+'/';
+        for (Iterator<String> itr = UPSTREAMS.keySet().iterator(); itr.hasNext(); ) {
+            if (itr.next().startsWith(prefix))
+                itr.remove();
+        }
+        for (Iterator<String> itr = INTEGRATABLES.iterator(); itr.hasNext(); ) {
+            if (itr.next().startsWith(prefix))
+                itr.remove();
+        }
+    }
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            rebuild();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            update(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            update(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            update(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            remove(item.getFullName(), true);
+        }
+
+        /**
+         * Called for renames and moves between folders, and also for every job inside a folder that's renamed or moved.
+         */
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            remove(oldFullName, false);
+            update(item);
+        }
+    }
+
+    /**
+     * Jobs can be reconfigured without going through the configuration page,
+     * such as when {@link FeatureBranchProperty} follows a renamed upstream.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject)
+                update((AbstractProject<?,?>) o);
+        }
+    }
+}
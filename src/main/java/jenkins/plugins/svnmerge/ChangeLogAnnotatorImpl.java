@@ -5,34 +5,124 @@ import hudson.MarkupText;
 import hudson.model.AbstractBuild;
 import hudson.model.Fingerprint;
 import hudson.model.Run;
+import hudson.model.listeners.RunListener;
 import hudson.scm.ChangeLogAnnotator;
 import hudson.scm.ChangeLogSet.Entry;
+import hudson.scm.SubversionChangeLogSet.LogEntry;
 import org.kohsuke.stapler.Stapler;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * If a commit from {@link FeatureBranchProperty#integrate(TaskListener, String, long, String)}
  * is found, link back to the build page.
  *
+ * <p>
+ * Change log pages are rendered over and over, and finding out where a commit came from
+ * requires loading its fingerprint from the disk. So we remember the answers, including
+ * the commits that didn't come from any build we know of.
+ *
  * @author Kohsuke Kawaguchi
  */
 @Extension
 public class ChangeLogAnnotatorImpl extends ChangeLogAnnotator {
     public void annotate(AbstractBuild<?, ?> build, Entry change, MarkupText text) {
-        try {
-            Fingerprint f = IntegrateAction.getIntegrationFingerprint(change);
-            if(f!=null) {
-                Run r = f.getOriginal().getRun();
-                text.addMarkup(
-                    IntegrateAction.COMMIT_MESSAGE_PREFIX.length(),
-                    text.getText().indexOf(IntegrateAction.COMMIT_MESSAGE_SUFFIX),
-                    "<a href='"+
-                    Stapler.getCurrentRequest().getContextPath()+"/"+r.getUrl()
-                    +"'>","</a>");
+        if (!(change instanceof LogEntry) || !change.getMsg().trim().startsWith(IntegrateAction.COMMIT_MESSAGE_PREFIX))
+            return;     // not an integration. no need to remember anything
+
+        String url = getIntegratedBuildUrl(build, (LogEntry) change);
+        if (url.length()>0) {
+            text.addMarkup(
+                IntegrateAction.COMMIT_MESSAGE_PREFIX.length(),
+                text.getText().indexOf(IntegrateAction.COMMIT_MESSAGE_SUFFIX),
+                "<a href='"+
+                Stapler.getCurrentRequest().getContextPath()+"/"+url
+                +"'>","</a>");
+        }
+    }
+
+    /**
+     * URL of the build that the given commit integrated, or {@link #NONE}.
+     */
+    /*package*/ static String getIntegratedBuildUrl(AbstractBuild<?, ?> build, LogEntry change) {
+        String key = build.getProject().getFullName()+"#"+change.getRevision();
+        String url;
+        synchronized (CACHE) {
+            url = CACHE.get(key);
+        }
+        if (url==null) {
+            url = NONE;
+            try {
+                Fingerprint f = IntegrateAction.getIntegrationFingerprint(change);
+                if(f!=null) {
+                    Run r = f.getOriginal().getRun();
+                    if (r!=null)
+                        url = r.getUrl();
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+            synchronized (CACHE) {
+                CACHE.put(key, url);
             }
-        } catch (IOException e) {
-            // ignore
         }
+        return url;
     }
+
+    /**
+     * Forgets everything we know, since a new integration may be the answer to a commit
+     * that we earlier found not to be one.
+     */
+    /*package*/ static void invalidate() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Forgets the answers that point to the given build.
+     */
+    /*package*/ static void invalidate(Run<?,?> build) {
+        String url = build.getUrl();
+        synchronized (CACHE) {
+            for (Iterator<String> itr = CACHE.values().iterator(); itr.hasNext(); ) {
+                if (itr.next().equals(url))
+                    itr.remove();
+            }
+        }
+    }
+
+    /**
+     * A deleted build that was integrated no longer has a page to link to.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            IntegrateAction ia = r.getAction(IntegrateAction.class);
+            if (ia!=null && ia.isIntegrated())
+                invalidate(r);
+        }
+    }
+
+    /**
+     * Marks the commits that look like integrations but have no fingerprint.
+     */
+    /*package*/ static final String NONE = "";
+
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * From the upstream project name and the revision to the URL of the build that got integrated,
+     * or {@link #NONE}. Least recently used entries are dropped first.
+     */
+    private static final Map<String,String> CACHE = new LinkedHashMap<String,String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
 }
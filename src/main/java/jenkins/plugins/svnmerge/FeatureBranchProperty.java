@@ -2,48 +2,54 @@ package jenkins.plugins.svnmerge;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
 import hudson.model.Action;
-import hudson.model.BuildListener;
 import hudson.model.Item;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.model.listeners.ItemListener;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.SCM;
-import hudson.scm.SubversionEventHandlerImpl;
 import hudson.scm.SubversionSCM;
 import hudson.scm.SvnClientManager;
 import hudson.scm.SubversionSCM.ModuleLocation;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.util.IOException2;
+import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.mutable.MutableBoolean;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNCancelException;
 import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNErrorCode;
 import org.tmatesoft.svn.core.SVNErrorMessage;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNMergeRangeList;
+import org.tmatesoft.svn.core.SVNProperty;
+import org.tmatesoft.svn.core.SVNPropertyValue;
 import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
-import org.tmatesoft.svn.core.wc.ISVNEventHandler;
+import org.tmatesoft.svn.core.io.SVNRepository;
 import org.tmatesoft.svn.core.wc.SVNClientManager;
 import org.tmatesoft.svn.core.wc.SVNCommitClient;
 import org.tmatesoft.svn.core.wc.SVNDiffClient;
-import org.tmatesoft.svn.core.wc.SVNEvent;
 import org.tmatesoft.svn.core.wc.SVNInfo;
 import org.tmatesoft.svn.core.wc.SVNRevision;
 import org.tmatesoft.svn.core.wc.SVNRevisionRange;
-import org.tmatesoft.svn.core.wc.SVNStatusType;
 import org.tmatesoft.svn.core.wc.SVNUpdateClient;
 import org.tmatesoft.svn.core.wc.SVNWCClient;
 
@@ -53,7 +59,12 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -76,6 +87,38 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
     private String upstream;
     private transient RebaseAction rebaseAction;
 
+    /**
+     * If true, stop merging as soon as the first conflict is found,
+     * instead of merging the whole tree only to revert it.
+     */
+    private boolean failFastMerge;
+
+    /**
+     * If true, the rebase and integration logs list every file, instead of the conflicts,
+     * the structural changes, and the counts. See {@link MergeEventHandler}.
+     * Null means true, which is how the logs always were before this option.
+     */
+    private Boolean verboseMergeLog;
+
+    /**
+     * How {@link #integrate(TaskListener, String, long, String)} merges the branch into the upstream.
+     * Null means {@link IntegrationEngineEnum#WORKSPACE}, for compatibility with the existing configuration.
+     */
+    private IntegrationEngineEnum integrationEngine;
+
+    /**
+     * How many times an integration commit that failed because the upstream was out of date is retried,
+     * and how many seconds we wait before the first retry. Null means the default.
+     */
+    private Integer commitRetries;
+    private Integer commitRetryInterval;
+
+    /**
+     * How many minutes each phase of a rebase or an integration, such as the merge or the commit,
+     * is allowed to take. 0 for no limit. See {@link MergeCanceller}.
+     */
+    private Integer phaseTimeout;
+
     @DataBoundConstructor
     public FeatureBranchProperty(String upstream) {
         if (upstream == null) {
@@ -88,6 +131,60 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
         return upstream;
     }
 
+    public boolean isFailFastMerge() {
+        return failFastMerge;
+    }
+
+    @DataBoundSetter
+    public void setFailFastMerge(boolean failFastMerge) {
+        this.failFastMerge = failFastMerge;
+    }
+
+    public boolean isVerboseMergeLog() {
+        return verboseMergeLog==null || verboseMergeLog;
+    }
+
+    @DataBoundSetter
+    public void setVerboseMergeLog(boolean verboseMergeLog) {
+        this.verboseMergeLog = verboseMergeLog;
+    }
+
+    public IntegrationEngineEnum getIntegrationEngine() {
+        return integrationEngine!=null ? integrationEngine : IntegrationEngineEnum.WORKSPACE;
+    }
+
+    @DataBoundSetter
+    public void setIntegrationEngine(IntegrationEngineEnum integrationEngine) {
+        this.integrationEngine = integrationEngine;
+    }
+
+    public int getCommitRetries() {
+        return commitRetries!=null ? commitRetries : DEFAULT_COMMIT_RETRIES;
+    }
+
+    @DataBoundSetter
+    public void setCommitRetries(int commitRetries) {
+        this.commitRetries = Math.max(0,commitRetries);
+    }
+
+    public int getCommitRetryInterval() {
+        return commitRetryInterval!=null ? commitRetryInterval : DEFAULT_COMMIT_RETRY_INTERVAL;
+    }
+
+    @DataBoundSetter
+    public void setCommitRetryInterval(int commitRetryInterval) {
+        this.commitRetryInterval = Math.max(0,commitRetryInterval);
+    }
+
+    public int getPhaseTimeout() {
+        return phaseTimeout!=null ? phaseTimeout : DEFAULT_PHASE_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setPhaseTimeout(int phaseTimeout) {
+        this.phaseTimeout = Math.max(0,phaseTimeout);
+    }
+
     /**
      * Gets the upstream project, or null if no such project was found.
      */
@@ -129,15 +226,6 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
         return Arrays.asList(new IntegrationStatusAction(this), rebaseAction);
     }
 
-    /**
-     * Just add the integration action.
-     */
-    @Override
-    public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
-        build.addAction(new IntegrateAction(build));
-        return true;
-    }
-
     /**
      * Integrates changes made in the upstream into the branch at the workspace.
      *
@@ -147,6 +235,10 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
      * from the upstream, then commit it. If the merge fails, we'll revert the workspace
      * so that the next build can go smoothly.
      *
+     * <p>
+     * If the task is aborted, or if a phase takes longer than {@link #getPhaseTimeout()},
+     * the merge is stopped and the workspace is reverted.
+     *
      * @param listener
      *      Where the progress is sent.
      * @param upstreamRev
@@ -160,40 +252,36 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
     public long rebase(final TaskListener listener, final long upstreamRev) throws IOException, InterruptedException {
         final SubversionSCM svn = (SubversionSCM) getOwner().getScm();
         final ISVNAuthenticationProvider provider = svn.createAuthenticationProvider(getOwner(), svn.getLocations()[0]);
+        final String clientKey = SvnClientManagerPool.getKey(getOwner(), svn.getLocations()[0]);
 
         final ModuleLocation upstreamLocation = getUpstreamSubversionLocation();
+        final String upstreamURL = upstreamLocation == null ? null : upstreamLocation.getURL();
+        final long lastRebasedRevision = getState().getLastRebasedRevision(upstreamURL);
+        final boolean failFast = isFailFastMerge();
+        final boolean verbose = isVerboseMergeLog();
+        final int timeout = getPhaseTimeout();
         
-        AbstractBuild build = owner.getSomeBuildWithWorkspace();
+        AbstractBuild build = WorkspacePlacement.getBuildWithWorkspace(owner);
         if (build == null) {
             final PrintStream logger = listener.getLogger();
             logger.print("No workspace found for project! Please perform a build first.\n");
             return -1L;
         }
-        return build.getModuleRoot().act(new FileCallable<Long>() {
-            public Long invoke(File mr, VirtualChannel virtualChannel) throws IOException {
+        RebaseResult result = build.getModuleRoot().act(new FileCallable<RebaseResult>() {
+            public RebaseResult invoke(File mr, VirtualChannel virtualChannel) throws IOException, InterruptedException {
+                final PrintStream logger = verbose ? listener.getLogger() : MergeEventHandler.batch(listener);
+                SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey, provider);
+                MergeCanceller canceller = new MergeCanceller(timeout);
+                MergeEventHandler printHandler = new MergeEventHandler(logger,mr,failFast,verbose,canceller);
+                SVNClientManager cm = lease.getCore();
                 try {
-                    final PrintStream logger = listener.getLogger();
-                    final boolean[] foundConflict = new boolean[1];
-                    ISVNEventHandler printHandler = new SubversionEventHandlerImpl(logger,mr) {
-                        @Override
-                        public void handleEvent(SVNEvent event, double progress) throws SVNException {
-                            super.handleEvent(event, progress);
-							if (event.getContentsStatus() == SVNStatusType.CONFLICTED
-									|| event.getContentsStatus() == SVNStatusType.CONFLICTED_UNRESOLVED) {
-								foundConflict[0] = true;
-							}
-                        }
-                    };
-
-                    SvnClientManager svnm = SubversionSCM.createClientManager(provider);
-
 					SVNURL up = upstreamLocation == null ? null : upstreamLocation.getSVNURL();
-                    SVNClientManager cm = svnm.getCore();
                     cm.setEventHandler(printHandler);
+                    cm.setCanceller(canceller);
 
-                    SVNWCClient wc = cm.getWCClient();
                     SVNDiffClient dc = cm.getDiffClient();
 
+                    printHandler.enter("updating the workspace");
                     logger.printf("Updating workspace to the latest revision\n");
                     long wsr = cm.getUpdateClient().doUpdate(mr, HEAD, INFINITY, false, false);
 //                    logger.printf("  Updated to rev.%d\n",wsr);  // reported by printHandler
@@ -202,13 +290,32 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
 
                     logger.printf("Merging change from the upstream %s at rev.%s\n",up,mergeRev);
                     SVNRevisionRange r = new SVNRevisionRange(SVNRevision.create(0),mergeRev);
-                    dc.doMerge(up, mergeRev, Arrays.asList(r), mr, INFINITY, true, false, false, false);
-                    if(foundConflict[0]) {
+                    if (lastRebasedRevision>0 && lastRebasedRevision<mergeRev.getNumber()) {
+                        // only merge what's new since the last rebase, unless svn:mergeinfo tells us otherwise
+                        if (getMergedUpTo(dc.doGetMergedMergeInfo(mr, WORKING), up) >= lastRebasedRevision) {
+                            logger.printf("  Last rebased to rev.%d. Merging only the changes after that\n",lastRebasedRevision);
+                            r = new SVNRevisionRange(SVNRevision.create(lastRebasedRevision),mergeRev);
+                        } else {
+                            logger.println("  svn:mergeinfo doesn't agree with the last recorded rebase. Merging the whole history");
+                        }
+                    }
+                    printHandler.enter("merging the upstream");
+                    printHandler.mergeStarted();
+                    try {
+                        dc.doMerge(up, mergeRev, Arrays.asList(r), mr, INFINITY, true, false, false, false);
+                    } catch (SVNCancelException e) {
+                        printHandler.onCancelled(e);
+                    } finally {
+                        printHandler.mergeFinished();
+                    }
+                    if(printHandler.hasConflicts()) {
                         logger.println("Found conflict. Reverting this failed merge");
-                        wc.doRevert(new File[]{mr},INFINITY, null);
-                        return -1L;
+                        printHandler.printConflicts();
+                        printHandler.revert(cm, mr);
+                        return new RebaseResult(-1L, mergeRev);
                     } else {
 						try {
+							printHandler.enter("committing the rebase");
 							logger.println("Committing changes");
 							SVNCommitClient cc = cm.getCommitClient();
 							SVNCommitInfo ci = cc.doCommit(new File[] { mr },
@@ -218,27 +325,397 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
 									false, INFINITY);
 							if (ci.getNewRevision() < 0) {
 								logger.println("  No changes since the last rebase. This rebase was a no-op.");
-								return 0L;
+								return new RebaseResult(0L, mergeRev);
 							} else {
 								logger.println("  committed revision "
 										+ ci.getNewRevision());
-								return ci.getNewRevision();
+								return new RebaseResult(ci.getNewRevision(), mergeRev);
 							}
+						} catch (SVNCancelException e) {
+							throw e;
 						} catch (SVNException e) {
 							logger.println("Failed to commit!");
 							logger.println(e.getLocalizedMessage());
 							logger.println("Reverting this failed merge.");
-							wc.doRevert(new File[] { mr }, INFINITY, null);
-							return -1L;
+							printHandler.revert(cm, mr);
+							return new RebaseResult(-1L, mergeRev);
 						}
                     }
+                } catch (SVNCancelException e) {
+                    lease.discard();
+                    printHandler.onAborted(cm, mr);
+                    throw new IOException2("Failed to merge", e);
                 } catch (SVNException e) {
+                    lease.discard();
                     throw new IOException2("Failed to merge", e);
+                } finally {
+                    logger.flush();
+                    lease.release();
+                }
+            }
+        });
+
+        if (result.newRevision>=0 && upstreamURL!=null) {
+            getState().onRebased(upstreamURL, result.upstreamRevision);
+        }
+        return result.newRevision;
+    }
+
+    /**
+     * Checks if {@link #rebase(TaskListener, long)} would merge anything,
+     * without touching the workspace.
+     *
+     * <p>
+     * This only talks to the Subversion server, so it can be used to avoid
+     * scheduling a rebase that's going to be a no-op.
+     *
+     * @param upstreamRev
+     *      Revision of the upstream to rebase from.
+     *      If -1, use the latest.
+     * @return
+     *      false if the rebase is known to be a no-op. true if there's something to merge,
+     *      or if we can't tell.
+     */
+    public boolean isRebaseNeeded(long upstreamRev) {
+        ModuleLocation upstreamLocation = getUpstreamSubversionLocation();
+        SCM scm = getOwner().getScm();
+        if (upstreamLocation==null || !(scm instanceof SubversionSCM))
+            return true;
+
+        SubversionSCM svn = (SubversionSCM) scm;
+        ModuleLocation branchLocation = Utility.getExpandedLocation(svn.getLocations()[0], getOwner());
+        String clientKey = SvnClientManagerPool.getKey(getOwner(), svn.getLocations()[0]);
+        SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey,
+                svn.createAuthenticationProvider(getOwner(), svn.getLocations()[0]));
+        SvnClientManager svnm = lease.get();
+        try {
+            SVNURL up = upstreamLocation.getSVNURL();
+            SVNRevision mergeRev = upstreamRev >= 0 ? SVNRevision.create(upstreamRev) : svnm.getWCClient().doInfo(up,HEAD,HEAD).getCommittedRevision();
+
+            // the cheapest check. nothing has been committed to the upstream since the last rebase
+            long lastRebasedRevision = getState().getLastRebasedRevision(upstreamLocation.getURL());
+            if (lastRebasedRevision>=mergeRev.getNumber())
+                return false;
+
+            // then the parsed svn:mergeinfo of the branch, and the cached log of the upstream
+            SVNRepository br = lease.createRepository(branchLocation.getSVNURL());
+            MergeInfoIndex index = MergeInfoIndex.of(br, clientKey, br.getLatestRevision());
+            int unmerged = countUnmerged(lease, clientKey, index, up, mergeRev.getNumber(), 1);
+            if (unmerged>=0)
+                return unmerged>0;
+
+            // otherwise let the server tell us if there's any revision that's not merged yet
+            final MutableBoolean eligible = new MutableBoolean(false);
+            svnm.getCore().getDiffClient().doGetLogEligibleMergeInfo(branchLocation.getSVNURL(), HEAD, up, mergeRev, false, null, new ISVNLogEntryHandler() {
+                public void handleLogEntry(SVNLogEntry e) throws SVNException {
+                    eligible.setValue(true);
                 }
+            });
+            return eligible.booleanValue();
+        } catch (SVNException e) {
+            LOGGER.log(Level.FINE, "Failed to check if "+getOwner().getFullName()+" has anything to rebase", e);
+            lease.discard();
+            return true;
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Checks if the given upstream revision is merged into the branch, according to svn:mergeinfo
+     * of the branch as of the last {@link #updateMergeStatus()}.
+     *
+     * <p>
+     * This is used while rendering pages, so it never talks to the Subversion server.
+     * If what we know is stale, it's updated in the background.
+     *
+     * @return
+     *      false if it's not, or if we can't tell yet.
+     */
+    public boolean isUpstreamRevisionMerged(long upstreamRev) {
+        scheduleMergeStatusUpdate();
+        MergeInfoIndex index = getState().getMergeInfo();
+        ModuleLocation upstreamLocation = getUpstreamSubversionLocation();
+        if (index==null || upstreamLocation==null)
+            return false;
+        try {
+            return index.isMerged(upstreamLocation.getSVNURL(), upstreamRev);
+        } catch (SVNException e) {
+            return false;   // the upstream URL is malformed
+        }
+    }
+
+    /**
+     * Gets the number of the commits in the upstream that the branch hasn't merged yet,
+     * as of the last {@link #updateMergeStatus()}.
+     *
+     * <p>
+     * This is used while rendering pages, so it never talks to the Subversion server.
+     * If what we know is stale, it's updated in the background.
+     *
+     * @return -1
+     *      if we can't tell, such as when svn:mergeinfo of the branch doesn't mention the upstream,
+     *      or when it hasn't been looked at yet.
+     */
+    public int getPendingUpstreamRevisions() {
+        scheduleMergeStatusUpdate();
+        return getState().getPendingUpstreamRevisions();
+    }
+
+    private void scheduleMergeStatusUpdate() {
+        if (!getState().beginMergeStatusUpdate())
+            return;     // fresh enough, or already being updated
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                updateMergeStatus();
             }
         });
     }
 
+    /**
+     * Reads svn:mergeinfo of the latest revision of the branch, and counts the upstream commits that it doesn't have,
+     * for {@link #isUpstreamRevisionMerged(long)} and {@link #getPendingUpstreamRevisions()}.
+     */
+    /*package*/ void updateMergeStatus() {
+        MergeInfoIndex index = null;
+        int pending = -1;
+        try {
+            ModuleLocation upstreamLocation = getUpstreamSubversionLocation();
+            SCM scm = getOwner().getScm();
+            if (upstreamLocation==null || !(scm instanceof SubversionSCM))
+                return;
+
+            SubversionSCM svn = (SubversionSCM) scm;
+            String clientKey = SvnClientManagerPool.getKey(getOwner(), svn.getLocations()[0]);
+            SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey,
+                    svn.createAuthenticationProvider(getOwner(), svn.getLocations()[0]));
+            try {
+                SVNURL up = upstreamLocation.getSVNURL();
+                SVNRepository br = lease.createRepository(Utility.getExpandedLocation(svn.getLocations()[0], getOwner()).getSVNURL());
+                index = MergeInfoIndex.of(br, clientKey, br.getLatestRevision());
+                pending = countUnmerged(lease, clientKey, index, up, lease.createRepository(up).getLatestRevision(), Integer.MAX_VALUE);
+            } catch (SVNException e) {
+                LOGGER.log(Level.FINE, "Failed to count the pending upstream revisions of "+getOwner().getFullName(), e);
+                lease.discard();
+            } finally {
+                lease.release();
+            }
+        } finally {
+            getState().setMergeStatus(index, pending);
+        }
+    }
+
+    /**
+     * Counts the upstream commits up to the given revision that the given svn:mergeinfo of the branch doesn't have.
+     *
+     * <p>
+     * Only the commits after the point that the branch has merged everything up to are looked at,
+     * and the log of those comes from {@link LogCache} when it can.
+     *
+     * @param limit
+     *      Stop counting when this many are found.
+     * @return -1
+     *      if svn:mergeinfo doesn't mention the upstream.
+     */
+    private int countUnmerged(SvnClientManagerPool.Lease lease, String clientKey, final MergeInfoIndex index, final SVNURL up, long upstreamRev, final int limit) throws SVNException {
+        long mergedUpTo = index.getMergedUpTo(up);
+        if (mergedUpTo<0)               return -1;
+        if (mergedUpTo>=upstreamRev)    return 0;
+
+        final int[] count = new int[1];
+        ISVNLogEntryHandler h = new ISVNLogEntryHandler() {
+            public void handleLogEntry(SVNLogEntry e) throws SVNException {
+                if (index.isMerged(up, e.getRevision()))    return;
+                if (++count[0]>=limit)
+                    throw new SVNCancelException();     // no need to read the rest
+            }
+        };
+        SVNRepository ur = lease.createRepository(up);
+        try {
+            if (!LogCache.log(ur, clientKey, upstreamRev, mergedUpTo+1, h))
+                ur.log(new String[]{""}, upstreamRev, mergedUpTo+1, false, true, 0, h);
+        } catch (SVNCancelException e) {
+            if (count[0]<limit)
+                throw e;
+            ur.closeSession();  // the server may still be sending the rest of the log
+        }
+        return count[0];
+    }
+
+    /**
+     * Checks if the branch has anything to integrate, without touching the workspace.
+     *
+     * <p>
+     * Commits made by rebases and integrations don't count, so the branch needs integrating if
+     * there's any other commit since the last integration. This only talks to the Subversion server,
+     * so it's used to avoid occupying an executor and the workspace for an integration that's going to be a no-op.
+     *
+     * @param branchURL
+     *      URL of the branch to be integrated. If null, use the configured location of the branch.
+     * @param branchRev
+     *      Revision of the branch to be integrated. If -1, use the latest.
+     * @return
+     *      false if the integration is known to be a no-op. true if there's something to integrate,
+     *      or if we can't tell.
+     */
+    public boolean isIntegrationNeeded(String branchURL, long branchRev) {
+        return isIntegrationNeeded(branchURL, branchRev, TaskListener.NULL);
+    }
+
+    /**
+     * @param listener
+     *      Where to report how much of the history of the branch was examined.
+     */
+    public boolean isIntegrationNeeded(String branchURL, long branchRev, TaskListener listener) {
+        Long since = getLastIntegrationSource();
+        SCM scm = getOwner().getScm();
+        if (since==null || !(scm instanceof SubversionSCM))
+            return true;
+
+        SubversionSCM svn = (SubversionSCM) scm;
+        String clientKey = SvnClientManagerPool.getKey(getOwner(), svn.getLocations()[0]);
+        SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey,
+                svn.createAuthenticationProvider(getOwner(), svn.getLocations()[0]));
+        try {
+            SVNURL url = branchURL!=null ? SVNURL.parseURIDecoded(branchURL)
+                    : Utility.getExpandedLocation(svn.getLocations()[0], getOwner()).getSVNURL();
+            SVNRepository repo = lease.createRepository(url);
+            long rev = branchRev>=0 ? branchRev : repo.getLatestRevision();
+
+            ChangeScan scan = new ChangeScan(clientKey);
+            boolean needed = scan.run(repo, rev, since);
+            PrintStream logger = listener.getLogger();
+            if (scan.change>=0)
+                logger.printf("Found a change to integrate in rev.%d, after examining %d commit(s) of the branch\n", scan.change, scan.examined);
+            else if (needed)
+                logger.printf("Examined %d commit(s) of the branch without finding anything but rebases and integrations. Not looking any further\n", scan.examined);
+            else
+                logger.printf("Examined %d commit(s) of the branch since rev.%d. All of them are rebases and integrations\n", scan.examined, since);
+            LOGGER.fine("Examined "+scan.examined+" commit(s) of "+url+" to see if "+getOwner().getFullName()+" has anything to integrate");
+            return needed;
+        } catch (SVNException e) {
+            LOGGER.log(Level.FINE, "Failed to check if "+getOwner().getFullName()+" has anything to integrate", e);
+            lease.discard();
+            return true;
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Looks for a commit that's neither a rebase nor an integration, from the given revision back to,
+     * but not including, the one that was integrated the last time.
+     *
+     * <p>
+     * The log is read from the {@link LogCache} when it goes back far enough, in which case all the commits
+     * since the last integration are looked at. Otherwise this reads the log from the server as it streams in,
+     * without the changed paths. The newest commits are the likeliest to be real changes, so we go backward
+     * and stop at the first one, leaving the rest of the log unread. Only {@link #INTEGRATION_CHECK_LIMIT}
+     * commits are read from the server. If all of those are merges, we assume there's something to integrate
+     * rather than reading the whole history.
+     */
+    /*package*/ static final class ChangeScan implements ISVNLogEntryHandler {
+        private final String clientKey;
+
+        /**
+         * Number of log entries looked at so far.
+         */
+        int examined;
+
+        /**
+         * The first commit found that's worth integrating, or -1.
+         */
+        long change = -1;
+
+        /**
+         * @param clientKey
+         *      Identifies the credentials of the session, for {@link LogCache}.
+         */
+        ChangeScan(String clientKey) {
+            this.clientKey = clientKey;
+        }
+
+        /**
+         * @param repo
+         *      Session opened at the branch.
+         * @return
+         *      true if there's something to integrate, or if we couldn't tell within the limit.
+         */
+        boolean run(SVNRepository repo, long rev, long since) throws SVNException {
+            if (rev<=since)     return false;
+            try {
+                if (LogCache.log(repo, clientKey, rev, since+1, this))
+                    return change>=0;   // the cache has the whole range, so no limit applies
+            } catch (SVNCancelException e) {
+                if (change<0)
+                    throw e;
+                return true;
+            }
+            try {
+                repo.log(new String[]{""}, rev, since+1, false, true, INTEGRATION_CHECK_LIMIT, this);
+            } catch (SVNCancelException e) {
+                if (change<0)
+                    throw e;
+                // the server is still sending the rest of the log, so this connection can't be reused
+                repo.closeSession();
+            }
+            return change>=0 || examined>=INTEGRATION_CHECK_LIMIT;
+        }
+
+        public void handleLogEntry(SVNLogEntry e) throws SVNException {
+            examined++;
+            String message = e.getMessage();
+            // a commit without a message can't be one of ours
+            if (message==null
+                    || !(message.startsWith(RebaseAction.COMMIT_MESSAGE_PREFIX)
+                      || message.startsWith(IntegrateAction.COMMIT_MESSAGE_PREFIX))) {
+                change = e.getRevision();
+                throw new SVNCancelException();     // no need to read the rest
+            }
+        }
+    }
+
+    /**
+     * Represents the result of rebase.
+     */
+    private static class RebaseResult implements Serializable {
+        private static final long serialVersionUID = -1L;
+
+        /**
+         * The commit in the branch, 0 if no commit was necessary, or -1 if it failed.
+         */
+        final long newRevision;
+
+        /**
+         * The upstream revision that was merged (or attempted to be merged.)
+         */
+        final long upstreamRevision;
+
+        RebaseResult(long newRevision, SVNRevision upstreamRevision) {
+            this.newRevision = newRevision;
+            this.upstreamRevision = upstreamRevision.getNumber();
+        }
+    }
+
+    /**
+     * Computes the upstream revision that the branch has merged everything up to,
+     * according to svn:mergeinfo.
+     *
+     * @return -1
+     *      if there's no mergeinfo about the upstream.
+     */
+    /*package*/ static long getMergedUpTo(Map<SVNURL,SVNMergeRangeList> mergeInfo, SVNURL up) {
+        if (mergeInfo==null || up==null)    return -1;
+        return MergeInfoIndex.of(mergeInfo).getMergedUpTo(up);
+    }
+
+    /**
+     * Gets the merge tracking information of this feature branch that's not a part of the configuration.
+     */
+    public FeatureBranchState getState() {
+        return FeatureBranchState.of(owner);
+    }
+
     /**
      * Represents the result of integration.
      */
@@ -269,7 +746,20 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
      * Perform a merge to the upstream that integrates changes in this branch.
      *
      * <p>
-     * This computation uses the workspace of the project.
+     * This computation uses the workspace of the project, unless {@link IntegrationEngineEnum#SPARSE}
+     * is selected, in which case it's done on the controller in a scratch working copy.
+     * With {@link IntegrationEngineEnum#POOLED}, the merge to the upstream is done in
+     * the shared working copy of the upstream on the same node, and the workspace is only used
+     * to record the integration in the branch.
+     *
+     * <p>
+     * If the task is aborted, or if a phase takes longer than {@link #getPhaseTimeout()},
+     * the merge is stopped, and the workspace is reverted and switched back to the branch.
+     *
+     * <p>
+     * This only checks if the given revision of the branch is already integrated, which takes no round trips
+     * to the server. It doesn't check if the commits since the last integration have anything to integrate;
+     * the caller should do that with {@link #isIntegrationNeeded(String, long)} before it acquires the workspace.
      *
      * @param listener
      *      Where the progress is sent.
@@ -282,95 +772,148 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
      *      Always non-null. See {@link IntegrationResult}
      */
     public IntegrationResult integrate(final TaskListener listener, final String branchURL, final long branchRev, final String commitMessage) throws IOException, InterruptedException {
-        final Long lastIntegrationSourceRevision = getlastIntegrationSourceRevision();
+        Long since = getLastIntegrationSource();
+        if (branchRev>=0 && since!=null && branchRev<=since) {
+            listener.getLogger().println("No changes to be integrated. Skipping integration.");
+            return new IntegrationResult(0, SVNRevision.create(branchRev));
+        }
 
         final SubversionSCM svn = (SubversionSCM) getUpstreamProject().getScm();
         final ISVNAuthenticationProvider provider = svn.createAuthenticationProvider(getUpstreamProject(), svn.getLocations()[0]);
+        final String clientKey = SvnClientManagerPool.getKey(getUpstreamProject(), svn.getLocations()[0]);
 
         final ModuleLocation upstreamLocation = getUpstreamSubversionLocation();
-        
-        return owner.getModuleRoot().act(new FileCallable<IntegrationResult>() {
-            public IntegrationResult invoke(File mr, VirtualChannel virtualChannel) throws IOException {
-                try {
-                    final PrintStream logger = listener.getLogger();
-                    final boolean[] foundConflict = new boolean[1];
-                    ISVNEventHandler printHandler = new SubversionEventHandlerImpl(logger,mr) {
-                        @Override
-                        public void handleEvent(SVNEvent event, double progress) throws SVNException {
-                            super.handleEvent(event, progress);
-                            if(event.getContentsStatus()== SVNStatusType.CONFLICTED)
-                                foundConflict[0] = true;
-                        }
-                    };
+        final boolean failFast = isFailFastMerge();
+        final boolean verbose = isVerboseMergeLog();
+        final int retries = getCommitRetries();
+        final long retryInterval = TimeUnit.SECONDS.toMillis(getCommitRetryInterval());
+        final int timeout = getPhaseTimeout();
 
-                    SvnClientManager svnm = SubversionSCM.createClientManager(provider);
+        if (getIntegrationEngine()==IntegrationEngineEnum.SPARSE)
+            return integrateSparse(listener, provider, clientKey, upstreamLocation, branchURL, branchRev, commitMessage, retries, retryInterval);
 
+        // prefer the workspace on the node we are running on
+        AbstractBuild<?,?> wsBuild = WorkspacePlacement.getBuildWithWorkspace(owner);
+        FilePath moduleRoot = wsBuild!=null ? wsBuild.getModuleRoot() : owner.getModuleRoot();
+        final String poolDir = getIntegrationEngine()==IntegrationEngineEnum.POOLED ? getUpstreamPoolDir(moduleRoot) : null;
+        final String poolKey = upstreamLocation == null ? null : UpstreamWorkingCopyPool.getKey(upstreamLocation.getURL(), upstreamLocation.credentialsId);
+        
+        return moduleRoot.act(new FileCallable<IntegrationResult>() {
+            public IntegrationResult invoke(File mr, VirtualChannel virtualChannel) throws IOException, InterruptedException {
+                final PrintStream logger = verbose ? listener.getLogger() : MergeEventHandler.batch(listener);
+                SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey, provider);
+                MergeCanceller canceller = new MergeCanceller(timeout);
+                MergeEventHandler printHandler = new MergeEventHandler(logger,mr,failFast,verbose,canceller);
+                SVNClientManager cm = lease.getCore();
+                SVNInfo wsState = null;
+                try {
 					SVNURL up = upstreamLocation == null ? null : upstreamLocation.getSVNURL();
-                    SVNClientManager cm = svnm.getCore();
                     cm.setEventHandler(printHandler);
+                    cm.setCanceller(canceller);
 
                     // capture the working directory state before the switch
                     SVNWCClient wc = cm.getWCClient();
-                    SVNInfo wsState = wc.doInfo(mr, null);
+                    wsState = wc.doInfo(mr, null);
                     SVNURL mergeUrl = branchURL != null ? SVNURL.parseURIDecoded(branchURL) : wsState.getURL();
                     SVNRevision mergeRev = branchRev >= 0 ? SVNRevision.create(branchRev) : wsState.getRevision();
 
-                    // do we have any meaningful changes in this branch worthy of integration?
-                    if (lastIntegrationSourceRevision !=null) {
-                    	final MutableBoolean changesFound = new MutableBoolean(false);
-                        cm.getLogClient().doLog(new File[]{mr},mergeRev,SVNRevision.create(lastIntegrationSourceRevision),mergeRev,true,false,-1,new ISVNLogEntryHandler() {
-                            public void handleLogEntry(SVNLogEntry e) throws SVNException {
-                                if (!changesFound.booleanValue()) {
-                                	String message = e.getMessage();
-                                	
-                                    if (!message.startsWith(RebaseAction.COMMIT_MESSAGE_PREFIX)
-                                    		&& !message.startsWith(IntegrateAction.COMMIT_MESSAGE_PREFIX)) {
-                                    	changesFound.setValue(true);
-                                    }
-                                }
-                            }
-                        });
-                        // didn't find anything interesting. all the changes are our merges
-                        if (!changesFound.booleanValue()) {
-	                        logger.println("No changes to be integrated. Skipping integration.");
-	                        return new IntegrationResult(0,mergeRev);
-                        }
-                    }
-                    
-                    logger.println("Switching to the upstream (" + up+")");
                     SVNUpdateClient uc = cm.getUpdateClient();
-                    uc.doSwitch(mr, up, HEAD, HEAD, INFINITY, false, false);
-
-                    logger.printf("Merging %s (rev.%s) to the upstream\n",mergeUrl,mergeRev);
                     SVNDiffClient dc = cm.getDiffClient();
-                    dc.doMergeReIntegrate(
-                            mergeUrl,
-                            mergeRev, mr, false);
                     SVNCommitInfo ci=null;
-                    if(foundConflict[0]) {
-                        logger.println("Found conflict with the upstream. Reverting this failed merge");
-                        wc.doRevert(new File[]{mr},INFINITY, null);
+                    if (poolDir!=null) {
+                        // merge into the shared working copy of the upstream, leaving the workspace at the branch
+                        printHandler.enter("updating the working copy of the upstream");
+                        UpstreamWorkingCopyPool.Lease wcLease = new UpstreamWorkingCopyPool(new File(poolDir)).lease(poolKey, up, cm, logger);
+                        boolean clean = false;
+                        try {
+                            File uwc = wcLease.getDir();
+                            MergeEventHandler upstreamHandler = new MergeEventHandler(logger,uwc,failFast,verbose,canceller);
+                            cm.setEventHandler(upstreamHandler);
+
+                            upstreamHandler.enter("merging the branch into the upstream");
+                            logger.printf("Merging %s (rev.%s) to the upstream\n",mergeUrl,mergeRev);
+                            upstreamHandler.mergeStarted();
+                            try {
+                                dc.doMergeReIntegrate(mergeUrl, mergeRev, uwc, false);
+                            } catch (SVNCancelException e) {
+                                upstreamHandler.onCancelled(e);
+                            } finally {
+                                upstreamHandler.mergeFinished();
+                            }
+                            if(upstreamHandler.hasConflicts()) {
+                                logger.println("Found conflict with the upstream. Reverting this failed merge");
+                                upstreamHandler.printConflicts();
+                                upstreamHandler.revert(cm, uwc);
+                                logger.println("Conflict found. Please sync with the upstream to resolve this error.");
+                                return new IntegrationResult(-1,mergeRev);
+                            }
+
+                            logger.println("Committing changes to the upstream");
+                            ci = commitWithRetry(cm, upstreamHandler, uwc, mergeUrl, mergeRev, commitMessage+"\n"+mergeUrl+"@"+mergeRev, retries, retryInterval, logger);
+                            if (ci==null) {
+                                logger.println("Found conflict with the upstream. Reverting this failed merge");
+                                upstreamHandler.printConflicts();
+                                upstreamHandler.revert(cm, uwc);
+                                logger.println("Conflict found. Please sync with the upstream to resolve this error.");
+                                return new IntegrationResult(-1,mergeRev);
+                            }
+                            if(ci.getNewRevision()<0)
+                                logger.println("  No changes since the last integration");
+                            else
+                                logger.println("  committed revision "+ci.getNewRevision());
+                            clean = true;
+                        } finally {
+                            cm.setEventHandler(printHandler);
+                            wcLease.release(clean);
+                        }
                     } else {
-                        logger.println("Committing changes to the upstream");
-                        SVNCommitClient cc = cm.getCommitClient();
-                        ci = cc.doCommit(new File[]{mr}, false, commitMessage+"\n"+mergeUrl+"@"+mergeRev, null, null, false, false, INFINITY);
-                        if(ci.getNewRevision()<0)
-                            logger.println("  No changes since the last integration");
-                        else
-                            logger.println("  committed revision "+ci.getNewRevision());
-                    }
+                        printHandler.enter("switching to the upstream");
+                        logger.println("Switching to the upstream (" + up+")");
+                        uc.doSwitch(mr, up, HEAD, HEAD, INFINITY, false, false);
 
-                    logger.println("Switching back to the branch (" + wsState.getURL()+"@"+wsState.getRevision()+")");
-                    uc.doSwitch(mr, wsState.getURL(), wsState.getRevision(), wsState.getRevision(), INFINITY, false, true);
+                        printHandler.enter("merging the branch into the upstream");
+                        logger.printf("Merging %s (rev.%s) to the upstream\n",mergeUrl,mergeRev);
+                        printHandler.mergeStarted();
+                        try {
+                            dc.doMergeReIntegrate(
+                                    mergeUrl,
+                                    mergeRev, mr, false);
+                        } catch (SVNCancelException e) {
+                            printHandler.onCancelled(e);
+                        } finally {
+                            printHandler.mergeFinished();
+                        }
+                        if(printHandler.hasConflicts()) {
+                            logger.println("Found conflict with the upstream. Reverting this failed merge");
+                            printHandler.printConflicts();
+                            printHandler.revert(cm, mr);
+                        } else {
+                            logger.println("Committing changes to the upstream");
+                            ci = commitWithRetry(cm, printHandler, mr, mergeUrl, mergeRev, commitMessage+"\n"+mergeUrl+"@"+mergeRev, retries, retryInterval, logger);
+                            if (ci==null) {
+                                logger.println("Found conflict with the upstream. Reverting this failed merge");
+                                printHandler.printConflicts();
+                                printHandler.revert(cm, mr);
+                            } else if(ci.getNewRevision()<0)
+                                logger.println("  No changes since the last integration");
+                            else
+                                logger.println("  committed revision "+ci.getNewRevision());
+                        }
+
+                        printHandler.enter("switching back to the branch");
+                        logger.println("Switching back to the branch (" + wsState.getURL()+"@"+wsState.getRevision()+")");
+                        uc.doSwitch(mr, wsState.getURL(), wsState.getRevision(), wsState.getRevision(), INFINITY, false, true);
 
-                    if(foundConflict[0]) {
-                        logger.println("Conflict found. Please sync with the upstream to resolve this error.");
-                        return new IntegrationResult(-1,mergeRev);
+                        if(printHandler.hasConflicts()) {
+                            logger.println("Conflict found. Please sync with the upstream to resolve this error.");
+                            return new IntegrationResult(-1,mergeRev);
+                        }
                     }
 
                     long trunkCommit = ci.getNewRevision();
 
                     if (trunkCommit>=0) {
+                        printHandler.enter("updating the workspace");
                         cm.getUpdateClient().doUpdate(mr, HEAD, INFINITY, false, false);
                         SVNCommitClient cc = cm.getCommitClient();
 
@@ -393,14 +936,24 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
 
                         // this is the black magic part, but my experiments reveal that we need to run trunk->branch merge --reintegrate
                         // or else future rebase fails
+                        printHandler.enter("merging the integration commit into the branch");
                         logger.printf("Merging change from the upstream %s at rev.%s\n",up,trunkCommit);
-                        dc.doMergeReIntegrate(up, SVNRevision.create(trunkCommit), mr, false);
-                        if(foundConflict[0]) {
+                        printHandler.mergeStarted();
+                        try {
+                            dc.doMergeReIntegrate(up, SVNRevision.create(trunkCommit), mr, false);
+                        } catch (SVNCancelException e) {
+                            printHandler.onCancelled(e);
+                        } finally {
+                            printHandler.mergeFinished();
+                        }
+                        if(printHandler.hasConflicts()) {
+                            printHandler.printConflicts();
                             uc.doSwitch(mr, wsState.getURL(), wsState.getRevision(), wsState.getRevision(), INFINITY, false, true);
                             logger.println("Conflict found. Please sync with the upstream to resolve this error.");
                             return new IntegrationResult(-1,mergeRev);
                         }
 
+                        printHandler.enter("committing to the branch");
                         String msg = RebaseAction.COMMIT_MESSAGE_PREFIX+"Rebasing with the integration commit that was just made in rev."+trunkCommit;
                         SVNCommitInfo bci = cc.doCommit(new File[]{mr}, false, msg, null, null, false, false, INFINITY);
                         logger.println("  committed revision "+bci.getNewRevision());
@@ -408,14 +961,200 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
 
                     // -1 is returned if there was no commit, so normalize that to 0
                     return new IntegrationResult(Math.max(0,trunkCommit),mergeRev);
+                } catch (SVNCancelException e) {
+                    lease.discard();
+                    printHandler.onAborted(cm, mr, wsState);
+                    throw new IOException2("Failed to merge", e);
                 } catch (SVNException e) {
+                    lease.discard();
                     throw new IOException2("Failed to merge", e);
+                } finally {
+                    logger.flush();
+                    lease.release();
                 }
             }
         });
     }
 
-    private Long getlastIntegrationSourceRevision() {
+    /**
+     * Commits the merge to the upstream.
+     *
+     * <p>
+     * If someone else commits to the upstream after we've merged, the commit fails as out of date.
+     * In that case, rather than losing the whole integration, we throw away the merge, update the
+     * working copy, merge again, and retry the commit. We wait a bit longer after each failure, so that
+     * we don't keep colliding with the same burst of commits.
+     *
+     * @param retries
+     *      How many times the commit is retried before giving up.
+     * @return
+     *      null if the merge was retried and it resulted in conflicts.
+     */
+    /*package*/ static SVNCommitInfo commitWithRetry(SVNClientManager cm, MergeEventHandler handler, File wc, final SVNURL mergeUrl, final SVNRevision mergeRev,
+                                                 String message, int retries, long interval, PrintStream logger) throws SVNException, InterruptedException {
+        // once the upstream moves past what the branch has merged, a reintegrate merge refuses to run.
+        // the branch still has everything of the upstream as of the first merge, so a two-URL merge from there
+        // brings the same changes, and svn:mergeinfo of the first merge is put back on top
+        SVNInfo base = cm.getWCClient().doInfo(wc, null);
+        final SVNURL up = base.getURL();
+        final SVNRevision left = base.getRevision();
+        final Map<SVNURL,SVNMergeRangeList> merged = cm.getDiffClient().doGetMergedMergeInfo(wc, WORKING);
+        return commitWithRetry(cm, handler, wc, mergeUrl, mergeRev, message, retries, interval, logger, new UpstreamMerge() {
+            public void merge(SVNClientManager cm, File wc) throws SVNException {
+                cm.getDiffClient().doMerge(up, left, mergeUrl, mergeRev, wc, INFINITY, true, false, false, false);
+                if (merged!=null)
+                    addMergeInfo(cm, wc, merged);
+            }
+        });
+    }
+
+    /**
+     * @param merge
+     *      Merges the branch again, after the working copy is updated.
+     */
+    /*package*/ static SVNCommitInfo commitWithRetry(SVNClientManager cm, MergeEventHandler handler, File wc, SVNURL mergeUrl, SVNRevision mergeRev,
+                                                 String message, int retries, long interval, PrintStream logger, UpstreamMerge merge) throws SVNException, InterruptedException {
+        for (int attempt=0; ; attempt++) {
+            handler.enter("committing to the upstream");
+            try {
+                return cm.getCommitClient().doCommit(new File[]{wc}, false, message, null, null, false, false, INFINITY);
+            } catch (SVNException e) {
+                if (attempt>=retries || !isOutOfDate(e) || e instanceof SVNCancelException)
+                    throw e;
+                logger.println("The upstream has changed since the merge: "+e.getErrorMessage().getMessage());
+                long wait = interval*(attempt+1);
+                logger.printf("Retrying the integration in %d seconds (%d of %d)\n", TimeUnit.MILLISECONDS.toSeconds(wait), attempt+1, retries);
+                handler.enter("waiting to retry the commit");
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException x) {
+                    // let the canceller report this, so that the merge gets reverted
+                    Thread.currentThread().interrupt();
+                    handler.checkCancelled();
+                    throw x;
+                }
+
+                handler.revert(cm, wc);
+                handler.enter("updating the working copy");
+                cm.getUpdateClient().doUpdate(wc, HEAD, INFINITY, false, false);
+
+                handler.enter("merging the branch into the upstream");
+                logger.printf("Merging %s (rev.%s) to the upstream\n",mergeUrl,mergeRev);
+                handler.mergeStarted();
+                try {
+                    merge.merge(cm, wc);
+                } catch (SVNCancelException x) {
+                    handler.onCancelled(x);
+                } finally {
+                    handler.mergeFinished();
+                }
+                if (handler.hasConflicts())
+                    return null;
+                logger.println("Committing changes to the upstream");
+            }
+        }
+    }
+
+    /**
+     * How the branch is merged into the working copy of the upstream, so that
+     * {@link #commitWithRetry} can do it again.
+     */
+    /*package*/ interface UpstreamMerge {
+        void merge(SVNClientManager cm, File wc) throws SVNException;
+    }
+
+    /**
+     * Adds the given ranges to svn:mergeinfo of the root of the working copy.
+     */
+    /*package*/ static void addMergeInfo(SVNClientManager cm, File dir, Map<SVNURL,SVNMergeRangeList> ranges) throws SVNException {
+        Map<SVNURL,SVNMergeRangeList> mergeInfo = new HashMap<SVNURL,SVNMergeRangeList>();
+        Map<SVNURL,SVNMergeRangeList> current = cm.getDiffClient().doGetMergedMergeInfo(dir, WORKING);
+        if (current!=null)
+            mergeInfo.putAll(current);
+        for (Map.Entry<SVNURL,SVNMergeRangeList> e : ranges.entrySet()) {
+            SVNMergeRangeList rl = mergeInfo.get(e.getKey());
+            mergeInfo.put(e.getKey(), rl==null ? e.getValue() : rl.merge(e.getValue()));
+        }
+
+        // the ranges print themselves in the format of svn:mergeinfo
+        String root = cm.getWCClient().doInfo(dir, null).getRepositoryRootURL().getPath();
+        Map<String,SVNMergeRangeList> paths = new TreeMap<String,SVNMergeRangeList>();
+        for (Map.Entry<SVNURL,SVNMergeRangeList> e : mergeInfo.entrySet()) {
+            String path = e.getKey().getPath().substring(root.length());
+            paths.put(path.startsWith("/") ? path : "/"+path, e.getValue());
+        }
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String,SVNMergeRangeList> e : paths.entrySet()) {
+            if (buf.length()>0)     buf.append('\n');
+            buf.append(e.getKey()).append(':').append(e.getValue());
+        }
+        cm.getWCClient().doSetProperty(dir, SVNProperty.MERGE_INFO, SVNPropertyValue.create(buf.toString()),
+                false, EMPTY, null, null);
+    }
+
+    /**
+     * Does the given error mean that the commit raced with another commit?
+     */
+    /*package*/ static boolean isOutOfDate(SVNException e) {
+        for (SVNErrorMessage m=e.getErrorMessage(); m!=null; m=m.getChildErrorMessage()) {
+            SVNErrorCode c = m.getErrorCode();
+            if (c==SVNErrorCode.WC_NOT_UP_TO_DATE || c==SVNErrorCode.FS_TXN_OUT_OF_DATE || c==SVNErrorCode.FS_CONFLICT)
+                return true;
+            String msg = m.getMessage();
+            if (msg!=null && msg.toLowerCase(Locale.ENGLISH).contains("out of date"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Where {@link UpstreamWorkingCopyPool} keeps the working copies on the node that has the given workspace.
+     *
+     * @return null
+     *      if the node isn't available, in which case the workspace is switched to the upstream.
+     */
+    private String getUpstreamPoolDir(FilePath moduleRoot) {
+        Computer c = moduleRoot.toComputer();
+        Node n = c==null ? null : c.getNode();
+        FilePath root = n==null ? null : n.getRootPath();
+        if (root==null)     return null;
+        return root.child("svnmerge").child("upstream").getRemote();
+    }
+
+    /**
+     * {@link #integrate(TaskListener, String, long, String)} without the workspace.
+     */
+    private IntegrationResult integrateSparse(TaskListener listener, ISVNAuthenticationProvider provider, String clientKey, ModuleLocation upstreamLocation,
+                                              String branchURL, long branchRev, String commitMessage,
+                                              int retries, long retryInterval) throws IOException, InterruptedException {
+        SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(clientKey, provider);
+        try {
+            SVNURL up = upstreamLocation == null ? null : upstreamLocation.getSVNURL();
+            SVNURL mergeUrl;
+            if (branchURL != null) {
+                mergeUrl = SVNURL.parseURIDecoded(branchURL);
+            } else {
+                SubversionSCM svn = (SubversionSCM) getOwner().getScm();
+                mergeUrl = Utility.getExpandedLocation(svn.getLocations()[0], getOwner()).getSVNURL();
+            }
+            return new SparseIntegration(lease.getCore(), listener.getLogger(), isFailFastMerge(), isVerboseMergeLog(), retries, retryInterval,
+                    new MergeCanceller(getPhaseTimeout()), clientKey)
+                    .integrate(up, mergeUrl, branchRev, commitMessage);
+        } catch (SVNException e) {
+            lease.discard();
+            throw new IOException2("Failed to merge", e);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * The revision of the branch that the last integration took, or null if the branch hasn't been integrated.
+     */
+    /*package*/ Long getLastIntegrationSource() {
+        FeatureBranchState state = getState();
+        if (state.getLastIntegratedBuild()!=null)
+            return state.getLastIntegrationSource();
         IntegrateAction ia = IntegrationStatusAction.getLastIntegrateAction(owner);
         if (ia!=null)   return ia.getIntegrationSource();
         return null;
@@ -462,14 +1201,31 @@ public class FeatureBranchProperty extends JobProperty<AbstractProject<?,?>> imp
             return "Upstream Subversion branch";
         }
 
+        public ListBoxModel doFillIntegrationEngineItems() {
+            ListBoxModel r = new ListBoxModel();
+            for (IntegrationEngineEnum e : IntegrationEngineEnum.values())
+                r.add(e.toString(), e.name());
+            return r;
+        }
+
         public List<AbstractProject<?,?>> listIntegratableProjects() {
             List<AbstractProject<?,?>> r = new ArrayList<AbstractProject<?,?>>();
-            for(AbstractProject<?,?> p : Jenkins.getInstance().getItems(AbstractProject.class))
-                if(p.getProperty(IntegratableProject.class)!=null)
+            // only the top-level ones, since the upstream is chosen by its name
+            for(AbstractProject<?,?> p : BranchIndex.getIntegratableProjects())
+                if(p.getParent()==Jenkins.getInstance())
                     r.add(p);
             return r;
         }
     }
 
+    private static final int DEFAULT_COMMIT_RETRIES = 3;
+    private static final int DEFAULT_COMMIT_RETRY_INTERVAL = 5;
+    private static final int DEFAULT_PHASE_TIMEOUT = 0;
+
+    /**
+     * How many commits of the branch {@link #isIntegrationNeeded(String, long)} looks at, at most.
+     */
+    private static final int INTEGRATION_CHECK_LIMIT = 100;
+
     private static final Logger LOGGER = Logger.getLogger(FeatureBranchProperty.class.getName());
 }
@@ -0,0 +1,298 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merge tracking information of a feature branch job.
+ *
+ * <p>
+ * Unlike {@link FeatureBranchProperty}, this is not a part of the job configuration.
+ * It is updated as rebases happen, so it's kept in its own file in the job directory
+ * to avoid rewriting <tt>config.xml</tt> every time.
+ */
+public class FeatureBranchState implements Saveable {
+    private transient Job<?,?> job;
+
+    /**
+     * Upstream URL that {@link #lastRebasedRevision} refers to.
+     */
+    private String rebasedFrom;
+
+    /**
+     * Upstream revision that the branch was last rebased to, or null if not known.
+     */
+    private Long lastRebasedRevision;
+
+    /**
+     * Number of the last build that got integrated to the upstream, 0 if none,
+     * or null if this job predates this field and we don't know yet.
+     */
+    private Integer lastIntegratedBuild;
+
+    /**
+     * Branch revision that {@link #lastIntegratedBuild} integrated, and the commit in the upstream that it made.
+     */
+    private Long lastIntegrationSource;
+    private Long lastIntegrationCommit;
+
+    /**
+     * Where the merge tasks of this branch ran since Jenkins started: on the node with the freshest workspace,
+     * on one with an older workspace, and elsewhere. See {@link WorkspacePlacement}.
+     */
+    private transient long placedOnFreshest, placedOnOlder, placedElsewhere;
+
+    /**
+     * Number of rebase and integration requests of this branch that were merged into a task
+     * that was already in the queue, since Jenkins started.
+     */
+    private transient long coalesced;
+
+    /**
+     * svn:mergeinfo of the branch and the number of the upstream commits it doesn't have, as of {@link #mergeStatusTimestamp},
+     * so that the pages can show them without talking to the Subversion server.
+     * See {@link FeatureBranchProperty#updateMergeStatus()}.
+     */
+    private transient MergeInfoIndex mergeInfo;
+    private transient int pendingUpstreamRevisions = -1;
+    private transient long mergeStatusTimestamp;
+    private transient boolean mergeStatusUpdating;
+
+    private FeatureBranchState(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Gets the upstream revision that the branch was last rebased to.
+     *
+     * @return -1
+     *      if the branch was never rebased from the given upstream, or this information is lost.
+     */
+    public synchronized long getLastRebasedRevision(String upstreamURL) {
+        if (lastRebasedRevision==null || rebasedFrom==null || !rebasedFrom.equals(upstreamURL))
+            return -1;
+        return lastRebasedRevision;
+    }
+
+    /**
+     * Records the successful rebase of the branch to the given upstream revision.
+     */
+    public synchronized void onRebased(String upstreamURL, long upstreamRevision) throws IOException {
+        rebasedFrom = upstreamURL;
+        lastRebasedRevision = upstreamRevision;
+        mergeStatusTimestamp = 0;   // svn:mergeinfo has changed
+        save();
+    }
+
+    /**
+     * Gets the number of the last build that got integrated to the upstream.
+     *
+     * @return 0
+     *      if no build was integrated. null if that's not known.
+     */
+    public synchronized Integer getLastIntegratedBuild() {
+        return lastIntegratedBuild;
+    }
+
+    /**
+     * Gets the branch revision that was integrated the last time, or null if none or not known.
+     */
+    public synchronized Long getLastIntegrationSource() {
+        return lastIntegrationSource;
+    }
+
+    /**
+     * Gets the commit in the upstream made by the last integration, or null if none or not known.
+     */
+    public synchronized Long getLastIntegrationCommit() {
+        return lastIntegrationCommit;
+    }
+
+    /**
+     * Records the successful integration of the given build.
+     */
+    public synchronized void onIntegrated(IntegrateAction ia) throws IOException {
+        // integrating an older build manually doesn't make it the last integrated build
+        if (lastIntegratedBuild!=null && lastIntegratedBuild>ia.build.getNumber())
+            return;
+        setLastIntegration(ia);
+    }
+
+    /**
+     * Records the last integration found by looking at the builds,
+     * when the recorded one is missing or no longer valid.
+     *
+     * @param ia
+     *      null if no build was integrated.
+     */
+    /*package*/ synchronized void setLastIntegration(IntegrateAction ia) throws IOException {
+        if (ia==null) {
+            lastIntegratedBuild = 0;
+            lastIntegrationSource = null;
+            lastIntegrationCommit = null;
+        } else {
+            lastIntegratedBuild = ia.build.getNumber();
+            lastIntegrationSource = ia.getIntegrationSource();
+            lastIntegrationCommit = ia.getIntegratedRevision();
+        }
+        save();
+    }
+
+    /**
+     * Records where a merge task ran.
+     *
+     * @param rank
+     *      Index of the node in {@link WorkspacePlacement#getCandidates(hudson.model.AbstractProject)}, or -1 if it's not there.
+     */
+    /*package*/ synchronized void onPlaced(int rank) {
+        if (rank==0)        placedOnFreshest++;
+        else if (rank>0)    placedOnOlder++;
+        else                placedElsewhere++;
+    }
+
+    /**
+     * Numbers of the merge tasks of this branch that ran on the node with the freshest workspace,
+     * on one with an older workspace, and elsewhere, since Jenkins started.
+     */
+    public synchronized long[] getPlacementStats() {
+        return new long[] {placedOnFreshest, placedOnOlder, placedElsewhere};
+    }
+
+    /*package*/ synchronized void onCoalesced() {
+        coalesced++;
+    }
+
+    /**
+     * Number of requests that were merged into a task already in the queue, since Jenkins started.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Gets svn:mergeinfo of the branch as of the last update, or null if not known.
+     */
+    /*package*/ synchronized MergeInfoIndex getMergeInfo() {
+        return mergeInfo;
+    }
+
+    /**
+     * Gets the number of the upstream commits that the branch didn't have as of the last update,
+     * or -1 if not known.
+     */
+    public synchronized int getPendingUpstreamRevisions() {
+        return pendingUpstreamRevisions;
+    }
+
+    /**
+     * Claims the update of the merge status, if it's stale and nobody else is updating it.
+     * The caller must then call {@link #setMergeStatus(MergeInfoIndex, int)}.
+     */
+    /*package*/ synchronized boolean beginMergeStatusUpdate() {
+        if (mergeStatusUpdating || System.currentTimeMillis()-mergeStatusTimestamp<MERGE_STATUS_TTL)
+            return false;
+        mergeStatusUpdating = true;
+        return true;
+    }
+
+    /*package*/ synchronized void setMergeStatus(MergeInfoIndex mergeInfo, int pendingUpstreamRevisions) {
+        this.mergeInfo = mergeInfo;
+        this.pendingUpstreamRevisions = pendingUpstreamRevisions;
+        mergeStatusTimestamp = System.currentTimeMillis();
+        mergeStatusUpdating = false;
+    }
+
+    public synchronized void save() throws IOException {
+        if (BulkChange.contains(this))  return;
+        XmlFile f = getConfigFile();
+        f.write(this);
+        SaveableListener.fireOnChange(this, f);
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(job.getRootDir(), "svnmerge.xml"));
+    }
+
+    /**
+     * Gets the state of the given job, loading it from the disk if necessary.
+     */
+    public static FeatureBranchState of(Job<?,?> job) {
+        synchronized (STATES) {
+            FeatureBranchState s = STATES.get(job.getFullName());
+            // a job that's reloaded from the disk is a different object
+            if (s==null || s.job!=job) {
+                s = new FeatureBranchState(job);
+                XmlFile f = s.getConfigFile();
+                if (f.exists()) {
+                    try {
+                        f.unmarshal(s);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+                    }
+                }
+                STATES.put(job.getFullName(), s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @param children
+     *      Also forget the jobs inside, if the item is a folder.
+     */
+    private static void forget(String fullName, boolean children) {
+        synchronized (STATES) {
+            STATES.remove(fullName);
+            if (!children)  return;
+
+            String prefix = fullName+'/';
+            for (Iterator<String> itr = STATES.keySet().iterator(); itr.hasNext(); ) {
+                if (itr.next().startsWith(prefix))
+                    itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Full name of the job to its state. The state refers to the job, so this can't be a weak map.
+     * Instead, the jobs that are deleted or moved are forgotten, like {@link BranchIndex} does.
+     */
+    private static final Map<String,FeatureBranchState> STATES = new HashMap<String,FeatureBranchState>();
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName(), true);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName, false);
+        }
+    }
+
+    /**
+     * How long the merge status is shown before it's updated again, in milliseconds.
+     * New commits in the upstream show up on the pages after this much time.
+     */
+    private static final long MERGE_STATUS_TTL = TimeUnit.SECONDS.toMillis(Integer.getInteger(FeatureBranchState.class.getName()+".mergeStatusSeconds", 60));
+
+    private static final Logger LOGGER = Logger.getLogger(FeatureBranchState.class.getName());
+}
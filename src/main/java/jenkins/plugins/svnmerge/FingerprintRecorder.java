@@ -0,0 +1,233 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Fingerprint;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the upstream builds that picked up integrations into their fingerprints,
+ * in the background.
+ *
+ * <p>
+ * Updating a fingerprint means rewriting its file, which used to be done one fingerprint
+ * at a time at the end of every upstream build. Instead, the updates are queued here,
+ * and written a little later, grouped by the fingerprint.
+ *
+ * <p>
+ * The queue itself is persisted when it's flushed and when Jenkins shuts down, so that
+ * the updates that couldn't be written survive the restart of Jenkins. Builds never write it.
+ *
+ * @see IntegratableProject#perform(hudson.model.AbstractBuild, hudson.Launcher, hudson.model.BuildListener)
+ */
+public final class FingerprintRecorder {
+    /**
+     * From the fingerprint ID to the builds to be added to it.
+     */
+    private final Map<String,List<Usage>> pending = new LinkedHashMap<String,List<Usage>>();
+
+    private transient boolean scheduled;
+
+    /**
+     * Has {@link #pending} changed since it was last persisted?
+     */
+    private transient boolean dirty;
+
+    /**
+     * Only one thread writes the fingerprints at a time.
+     */
+    private transient final Object flushLock = new Object();
+
+    private FingerprintRecorder() {}
+
+    /**
+     * A build to be added to a fingerprint.
+     */
+    static final class Usage {
+        final String job;
+        final int number;
+
+        Usage(String job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+    }
+
+    /**
+     * Queues the addition of the given build to the given fingerprints.
+     *
+     * @param ids
+     *      Fingerprint IDs. See {@link IntegrateAction#getIntegrationFingerprintKey(hudson.scm.ChangeLogSet.Entry)}
+     */
+    public void record(Collection<String> ids, Run<?,?> build) throws IOException {
+        if (ids.isEmpty())  return;
+        synchronized (this) {
+            for (String id : ids)
+                add(id, new Usage(build.getParent().getFullName(), build.getNumber()));
+        }
+        schedule();
+    }
+
+    /**
+     * Queues the addition of the given build to the given fingerprint.
+     */
+    public void record(String id, String job, int number) throws IOException {
+        synchronized (this) {
+            add(id, new Usage(job, number));
+        }
+        schedule();
+    }
+
+    private void add(String id, Usage u) {
+        List<Usage> l = pending.get(id);
+        if (l==null)
+            pending.put(id, l=new ArrayList<Usage>());
+        l.add(u);
+        dirty = true;
+    }
+
+    /**
+     * Gets the smallest number of the builds of the given job that are waiting to be added
+     * to the given fingerprint.
+     *
+     * @return -1
+     *      if none.
+     */
+    public synchronized int getPendingBuildNumber(String id, String job) {
+        int r = -1;
+        List<Usage> l = pending.get(id);
+        if (l!=null) {
+            for (Usage u : l) {
+                if ((job==null || u.job.equals(job)) && (r<0 || u.number<r))
+                    r = u.number;
+            }
+        }
+        return r;
+    }
+
+    private synchronized void schedule() {
+        if (scheduled)  return;
+        scheduled = true;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                synchronized (FingerprintRecorder.this) {
+                    scheduled = false;
+                }
+                flush();
+            }
+        }, FLUSH_DELAY, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes all the queued updates to the fingerprints.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String,List<Usage>> batch;
+            synchronized (this) {
+                if (pending.isEmpty())  return;
+                batch = new LinkedHashMap<String,List<Usage>>();
+                for (Entry<String,List<Usage>> e : pending.entrySet())
+                    batch.put(e.getKey(), new ArrayList<Usage>(e.getValue()));
+            }
+
+            Map<String,List<Usage>> written = new LinkedHashMap<String,List<Usage>>();
+            for (Entry<String,List<Usage>> e : batch.entrySet()) {
+                try {
+                    Fingerprint f = Jenkins.getInstance().getFingerprintMap().get(e.getKey());
+                    if (f!=null) {
+                        for (Usage u : e.getValue())
+                            f.addWithoutSaving(u.job, u.number);
+                        f.save();
+                    }
+                    // if the fingerprint is gone, there's nothing left to record to
+                    written.put(e.getKey(), e.getValue());
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "Failed to update the fingerprint "+e.getKey(), x);
+                }
+            }
+
+            synchronized (this) {
+                // builds added while we were writing stay in the queue
+                for (Entry<String,List<Usage>> e : written.entrySet()) {
+                    List<Usage> l = pending.get(e.getKey());
+                    if (l==null)    continue;
+                    l.removeAll(e.getValue());
+                    if (l.isEmpty())
+                        pending.remove(e.getKey());
+                    dirty = true;
+                }
+            }
+            try {
+                save();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Failed to persist the pending fingerprint updates", x);
+            }
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        if (!dirty)     return;
+        dirty = false;
+        XmlFile f = getConfigFile();
+        if (pending.isEmpty())
+            f.delete();
+        else
+            f.write(this);
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.getInstance().getRootDir(), FingerprintRecorder.class.getName()+".xml"));
+    }
+
+    public static FingerprintRecorder get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Picks up the updates that weren't written before the last shutdown.
+     */
+    @Initializer(after=InitMilestone.JOB_LOADED)
+    public static void load() {
+        XmlFile f = getConfigFile();
+        if (!f.exists())    return;
+        try {
+            synchronized (INSTANCE) {
+                f.unmarshal(INSTANCE);
+            }
+            INSTANCE.schedule();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+        }
+    }
+
+    @Terminator
+    public static void shutdown() {
+        INSTANCE.flush();
+    }
+
+    private static final FingerprintRecorder INSTANCE = new FingerprintRecorder();
+
+    /**
+     * Seconds to wait before writing, so that the updates from builds that finish close together are written at once.
+     */
+    private static final long FLUSH_DELAY = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintRecorder.class.getName());
+}
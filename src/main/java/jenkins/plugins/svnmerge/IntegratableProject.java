@@ -6,7 +6,6 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildListener;
-import hudson.model.Fingerprint;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
@@ -16,6 +15,7 @@ import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -34,15 +34,20 @@ public class IntegratableProject extends JobProperty<AbstractProject<?,?>> {
     /**
      * If a build is picking up an integration, record this build into a fingerprint
      * (so that we can track where we've integrated changes.)
+     *
+     * <p>
+     * The fingerprints are updated in the background by {@link FingerprintRecorder}.
      */
     @Override
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        List<String> ids = new ArrayList<String>();
         for (Entry e : build.getChangeSet()) {
-            Fingerprint f = IntegrateAction.getIntegrationFingerprint(e);
+            String id = IntegrateAction.getIntegrationFingerprintKey(e);
             // this build is merging an integration. Leave this in the record
-            if(f!=null)
-                f.add(build);
+            if(id!=null)
+                ids.add(id);
         }
+        FingerprintRecorder.get().record(ids, build);
 
         return true;
     }
@@ -51,6 +56,13 @@ public class IntegratableProject extends JobProperty<AbstractProject<?,?>> {
         return owner;
     }
 
+    /**
+     * Integrations into this project line up here.
+     */
+    public IntegrationQueue getIntegrationQueue() {
+        return IntegrationQueue.of(owner);
+    }
+
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
         /**
@@ -74,20 +74,48 @@ public class IntegratableProjectAction extends AbstractModelObject implements Ac
         return "featureBranches";
     }
 
+    public IntegrationQueue getIntegrationQueue() {
+        return ip.getIntegrationQueue();
+    }
+
+    /**
+     * Number of rebase and integration requests of the feature branches that were merged into ones already in the queue.
+     */
+    public long getCoalescedCount() {
+        long r = 0;
+        for (AbstractProject<?,?> b : getBranches())
+            r += FeatureBranchState.of(b).getCoalescedCount();
+        return r;
+    }
+
+    /**
+     * How well rebases and integrations of the feature branches land on the nodes that have their workspaces,
+     * as the numbers of tasks that ran on the freshest workspace, on an older one, and elsewhere.
+     */
+    public long[] getPlacementStats() {
+        long[] r = new long[3];
+        for (AbstractProject<?,?> b : getBranches()) {
+            long[] s = FeatureBranchState.of(b).getPlacementStats();
+            for (int i=0; i<r.length; i++)
+                r[i] += s[i];
+        }
+        return r;
+    }
+
+    /**
+     * How many times the expanded Subversion locations were answered from the cache, and how many times
+     * they had to be looked up, for all the jobs since Jenkins started.
+     */
+    public long[] getLocationCacheStats() {
+        return new long[] {Utility.getExpandedLocationCacheHits(), Utility.getExpandedLocationCacheMisses()};
+    }
+
     /**
      * Gets feature branches for this project.
      */
     public List<AbstractProject<?,?>> getBranches() {
         // looking for the project's full name because we want to search nested projects
-    	String n = project.getFullName();
-        List<AbstractProject<?,?>> r  = new ArrayList<AbstractProject<?,?>>();
-        // iterating over all items in tree (recursively)
-        for (AbstractProject<?,?> p : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
-            FeatureBranchProperty fbp = p.getProperty(FeatureBranchProperty.class);
-            if(fbp!=null && fbp.getUpstream().equals(n))
-                r.add(p);
-        }
-        return r;
+        return BranchIndex.getBranches(project.getFullName());
     }
     
     /**
@@ -173,51 +201,55 @@ public class IntegratableProjectAction extends AbstractModelObject implements Ac
         }
         
         if (!attach) {
-        	SvnClientManager svnMgr = SubversionSCM.createClientManager(
+        	SvnClientManagerPool.Lease lease = SvnClientManagerPool.lease(SvnClientManagerPool.getKey(project, firstLocation),
         			svn.createAuthenticationProvider(project, firstLocation));
-        	
-	        List<String> urlsToCopyTo = new ArrayList<String>();
-	        SVNURL svnUrl = null;
-	    	try {
-	    		svnUrl = SVNURL.parseURIEncoded(branchUrl);
-	    		SVNInfo info = svnMgr.getWCClient().doInfo(svnUrl, SVNRevision.HEAD, SVNRevision.HEAD);
-	    		if(info.getKind()== SVNNodeKind.DIR) {
-	    			// ask the user if we should attach
-	    			req.getView(this,"_attach.jelly").forward(req,rsp);
-	    			return;
-	    		} else {
-	    			sendError(info.getURL()+" already exists.");
-	    			return;
-	    		}
-	    	} catch (SVNException e) {
-	    		// path doesn't exist, the new branch can be created
-	    	}
-	        urlsToCopyTo.add(branchUrl);
+        	SvnClientManager svnMgr = lease.get();
+        	try {
+		        List<String> urlsToCopyTo = new ArrayList<String>();
+		        SVNURL svnUrl = null;
+		    	try {
+		    		svnUrl = SVNURL.parseURIEncoded(branchUrl);
+		    		SVNInfo info = svnMgr.getWCClient().doInfo(svnUrl, SVNRevision.HEAD, SVNRevision.HEAD);
+		    		if(info.getKind()== SVNNodeKind.DIR) {
+		    			// ask the user if we should attach
+		    			req.getView(this,"_attach.jelly").forward(req,rsp);
+		    			return;
+		    		} else {
+		    			sendError(info.getURL()+" already exists.");
+		    			return;
+		    		}
+		    	} catch (SVNException e) {
+		    		// path doesn't exist, the new branch can be created
+		    	}
+		        urlsToCopyTo.add(branchUrl);
 	        
-	    	String tagUrl = null;
-	        if (createTag) {
-	        	//can be true only when not attaching
-	        	if (StringUtils.isNotEmpty(tagLocation)) {
-	        		//using override value
-	        		tagUrl = tagLocation;
-	        	} else {
-	        		//using default value
-	        		tagUrl = layoutInfo.getDefaultNewDevTagUrl().replace("<new_branch_name>", name);
-	        	}
-	        	try {
-	        		svnUrl = SVNURL.parseURIEncoded(tagUrl);
-	        		SVNInfo info = svnMgr.getWCClient().doInfo(svnUrl, SVNRevision.HEAD, SVNRevision.HEAD);
-	        		sendError(info.getURL()+" already exists.");
-	        		return;
-	        	} catch (SVNException e) {
-	        		// path doesn't exist, the new tag can be created
-	        	}
-	        	urlsToCopyTo.add(tagUrl);
-	        }
+		    	String tagUrl = null;
+		        if (createTag) {
+		        	//can be true only when not attaching
+		        	if (StringUtils.isNotEmpty(tagLocation)) {
+		        		//using override value
+		        		tagUrl = tagLocation;
+		        	} else {
+		        		//using default value
+		        		tagUrl = layoutInfo.getDefaultNewDevTagUrl().replace("<new_branch_name>", name);
+		        	}
+		        	try {
+		        		svnUrl = SVNURL.parseURIEncoded(tagUrl);
+		        		SVNInfo info = svnMgr.getWCClient().doInfo(svnUrl, SVNRevision.HEAD, SVNRevision.HEAD);
+		        		sendError(info.getURL()+" already exists.");
+		        		return;
+		        	} catch (SVNException e) {
+		        		// path doesn't exist, the new tag can be created
+		        	}
+		        	urlsToCopyTo.add(tagUrl);
+		        }
         
-			if (!createSVNCopy(svnMgr, firstLocation, urlsToCopyTo, commitMessage, req, rsp)) {
-				return;
-			}
+				if (!createSVNCopy(svnMgr, firstLocation, urlsToCopyTo, commitMessage, req, rsp)) {
+					return;
+				}
+        	} finally {
+        		lease.release();
+        	}
         }
         
     	// if the request wasn't forwarded
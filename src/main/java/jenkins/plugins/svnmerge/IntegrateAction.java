@@ -1,15 +1,23 @@
 package jenkins.plugins.svnmerge;
 
+import hudson.Extension;
+import hudson.FilePath;
 import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Fingerprint;
 import hudson.model.Fingerprint.RangeSet;
 import hudson.model.Queue.Task;
+import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
 import hudson.scm.ChangeLogSet.Entry;
 import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
 import hudson.scm.SVNRevisionState;
 import hudson.scm.SubversionChangeLogSet.LogEntry;
 import hudson.scm.SubversionSCM;
@@ -20,18 +28,28 @@ import hudson.security.Permission;
 import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
 import hudson.util.LogTaskListener;
+import hudson.util.StreamTaskListener;
 import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+import jenkins.model.TransientActionFactory;
 import jenkins.plugins.svnmerge.FeatureBranchProperty.IntegrationResult;
+import jenkins.util.Timer;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.wc.SVNRevision;
 
 import javax.servlet.ServletException;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.WARNING;
@@ -40,9 +58,13 @@ import static java.util.logging.Level.WARNING;
  * {@link AbstractBuild}-level action to integrate
  * the build to upstream branch.
  *
+ * <p>
+ * Most builds are never integrated, so this action is only persisted with the build
+ * once an integration is attempted. Until then, {@link TransientActionFactoryImpl} provides it.
+ *
  * @author Kohsuke Kawaguchi
  */
-public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting> implements BuildBadgeAction {
+public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting> implements BuildBadgeAction, RunAction2 {
 
      protected Permission getPermission() {
          return INTEGRATE_PERMISSION;
@@ -61,6 +83,13 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
      * Commit in the branch that was merged into the {@link #integratedRevision}
      */
     private Long integrationSource;
+
+    /**
+     * URL and revision that this build checked out, captured when the checkout is done.
+     * Null for builds that predate this field, or before the checkout.
+     * Like the rest of this action, it's only persisted with the builds that an integration was attempted on.
+     */
+    private SvnInfo svnInfo;
     
     public IntegrateAction(AbstractBuild<?,?> build) {
         this.build = build;
@@ -128,8 +157,32 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
 
     /**
      * URL and revision to be integrated from this action.
+     *
+     * <p>
+     * This is called for every build whenever the build history is rendered,
+     * so we use what we captured when the build checked out the code. Builds that were loaded
+     * from the disk without it get it from their {@link SVNRevisionState}, once.
      */
-	public SvnInfo getSvnInfo() {
+    public SvnInfo getSvnInfo() {
+        if (svnInfo!=null)
+            return svnInfo;
+        SvnInfo info = computeSvnInfo();
+        if (info!=null && !build.isBuilding())
+            svnInfo = info;   // it won't change any more
+        return info;
+    }
+
+    /**
+     * Remembers the URL and revision, once the build has checked out the code,
+     * so that it doesn't follow later reconfiguration of the job while the build is in memory.
+     */
+    /*package*/ void captureSvnInfo() {
+        SvnInfo info = computeSvnInfo();
+        if (info!=null)
+            svnInfo = info;
+    }
+
+	private SvnInfo computeSvnInfo() {
 		SCM scm = getProject().getScm();
 		if (!(scm instanceof SubversionSCM)) {
 			return null;
@@ -137,15 +190,16 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
 
 		// TODO: check for multiple locations ?
 		SubversionSCM svn = (SubversionSCM) scm;
-		ModuleLocation[] locations = svn.getLocations(); 
 
         ModuleLocation firstLocation = svn.getLocations()[0];
         // expand system and node environment variables as well as the
         // project parameters
         firstLocation = Utility.getExpandedLocation(firstLocation, getProject());
 
+        SVNRevisionState state = build.getAction(SVNRevisionState.class);
+        if (state==null)
+            return null;    // not checked out yet
         try {
-            SVNRevisionState state = build.getAction(SVNRevisionState.class);
             long revision = state.getRevision(firstLocation.getURL());
 
             return new SvnInfo(firstLocation.getSVNURL().toDecodedString(), revision);
@@ -156,13 +210,46 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
 		return null;
 	}
 
+    /**
+     * If there's nothing to integrate, say so without queueing the task, as if it had run.
+     */
+    @Override
+    protected boolean isNoOp(IntegrateSetting param) throws IOException {
+        SvnInfo src = getSvnInfo();
+        if (workerThread!=null || src==null)
+            return false;
+
+        Long since = getProperty().getLastIntegrationSource();
+        StreamTaskListener listener = new StreamTaskListener(getLogFile());
+        try {
+            if (getProperty().isIntegrationNeeded(src.url, src.revision, listener)) {
+                param.integrationNeededSince = since;
+                return false;   // the task overwrites the log anyway
+            }
+            listener.getLogger().println("No changes to be integrated. Skipping integration.");
+        } finally {
+            listener.close();
+        }
+        record(new IntegrationResult(0, SVNRevision.create(src.revision)));
+        return true;
+    }
+
     /**
      * Integrate the branch.
      * <p>
      * This requires that the calling thread owns the workspace.
      */
-    /*package*/ long perform(TaskListener listener, IntegrateSetting _) throws IOException, InterruptedException {
-        return perform(listener, getSvnInfo());
+    /*package*/ long perform(TaskListener listener, IntegrateSetting s) throws IOException, InterruptedException {
+        return perform(listener, getSvnInfo(), s.integrationNeededSince);
+    }
+
+    /**
+     * A request that found nothing to do was never queued, so a queued one that has the result of the check
+     * is kept over a newer one that doesn't.
+     */
+    @Override
+    protected IntegrateSetting merge(IntegrateSetting queued, IntegrateSetting newer) {
+        return newer.integrationNeededSince==null && queued.integrationNeededSince!=null ? queued : newer;
     }
 
     /**
@@ -170,22 +257,133 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
      *      We are taking this revision and merge it into the upstream.
      */
     public long perform(TaskListener listener, SvnInfo src) throws IOException, InterruptedException {
-        String commitMessage = getCommitMessage();
+        return perform(listener, src, null);
+    }
+
+    /**
+     * @param integrationNeededSince
+     *      See {@link IntegrateSetting#integrationNeededSince}. If null, the branch is checked for anything to integrate.
+     */
+    private long perform(TaskListener listener, SvnInfo src, Long integrationNeededSince) throws IOException, InterruptedException {
+        // integrations into the same upstream take turns. a queued task only starts when no integration is in progress,
+        // but a build may still have got in line in the mean time
+        IntegrationQueue q = getIntegrationQueue();
+        IntegrationQueue.Ticket ticket = q==null ? null : q.enter(getIntegrationName(), listener);
+        try {
+            // the publisher gets here without the queue, and a queued task may have been beaten to it by another integration
+            if (integrationNeededSince!=null && integrationNeededSince.equals(getProperty().getLastIntegrationSource())) {
+                listener.getLogger().println("Found changes to integrate before queueing, and the branch hasn't been integrated since");
+            } else if (!getProperty().isIntegrationNeeded(src.url, src.revision, listener)) {
+                listener.getLogger().println("No changes to be integrated. Skipping integration.");
+                return record(new IntegrationResult(0, SVNRevision.create(src.revision)));
+            }
 
-        IntegrationResult r = getProperty().integrate(listener, src.url, src.revision, commitMessage);
+            String commitMessage = getCommitMessage();
+            return record(getProperty().integrate(listener, src.url, src.revision, commitMessage));
+        } finally {
+            if (ticket!=null)
+                ticket.leave();
+        }
+    }
+
+    /**
+     * Line of the integrations into the upstream, or null if the upstream is gone.
+     */
+    /*package*/ IntegrationQueue getIntegrationQueue() {
+        FeatureBranchProperty p = getProperty();
+        AbstractProject<?,?> upstream = p!=null ? p.getUpstreamProject() : null;
+        return upstream==null ? null : IntegrationQueue.of(upstream);
+    }
+
+    /*package*/ String getIntegrationName() {
+        return build.getFullDisplayName();
+    }
+
+    /**
+     * Records the outcome of an integration with the build.
+     */
+    private long record(IntegrationResult r) throws IOException {
         integratedRevision = r.mergeCommit;
         integrationSource = r.integrationSource;
+        if (!build.getActions().contains(this))
+            build.addAction(this);  // from now on, this is a part of the build record
         if(integratedRevision>0) {
             // record this integration as a fingerprint.
             // this will allow us to find where this change is integrated.
             Jenkins.getInstance().getFingerprintMap().getOrCreate(
                     build, IntegrateAction.class.getName(),
                     getFingerprintKey());
+            ChangeLogAnnotatorImpl.invalidate();
         }
         build.save();
+        if(integratedRevision>0)
+            FeatureBranchState.of(build.getProject()).onIntegrated(this);
         return integratedRevision;
     }
 
+    public void onAttached(Run<?,?> r) {
+    }
+
+    /**
+     * Builds recorded before the action was provided transiently carry one whether or not they were integrated.
+     * Drop those from memory, so that they get the transient one like the other builds do.
+     * {@link #slimBuildRecords()} rewrites their records.
+     */
+    public void onLoad(Run<?,?> r) {
+        if (!isIntegrationAttempted()) {
+            r.removeAction(this);
+            synchronized (UNSLIMMED) {
+                UNSLIMMED.put(r, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the records of the builds that carry an integration action that was never used, in the background.
+     * This is done once, and remembered in a marker file.
+     */
+    @Initializer(after=InitMilestone.JOB_LOADED)
+    public static void slimBuildRecords() {
+        final File marker = new File(Jenkins.getInstance().getRootDir(), IntegrateAction.class.getName()+".slimmed");
+        if (marker.exists())    return;
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                for (AbstractProject<?,?> p : Jenkins.getInstance().getAllItems(AbstractProject.class))
+                    slimBuildRecords(p);
+                try {
+                    marker.createNewFile();
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to create "+marker, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites the records of the builds of the given job that carry an integration action that was never used.
+     */
+    /*package*/ static void slimBuildRecords(AbstractProject<?,?> p) {
+        if (p.getProperty(FeatureBranchProperty.class)==null)
+            return;     // only feature branches ever had the action
+        // loading the builds is what tells which ones carry it. see onLoad
+        for (AbstractBuild<?,?> b : p.getBuilds()) {
+            synchronized (UNSLIMMED) {
+                if (UNSLIMMED.remove(b)==null)
+                    continue;
+            }
+            try {
+                b.save();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to rewrite the record of "+b, e);
+            }
+        }
+    }
+
+    /**
+     * Builds that were loaded with an integration action that was never used, and haven't been saved since.
+     */
+    private static final Map<Run<?,?>,Boolean> UNSLIMMED = new WeakHashMap<Run<?,?>,Boolean>();
+
     /**
      * Gets the build number of the upstream where this integration is built.
      *
@@ -197,21 +395,37 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
      *      if not integrated yet or this information is lost.
      */
     public int getUpstreamBuildNumber() throws IOException {
-        Fingerprint f = Jenkins.getInstance().getFingerprintMap().get(getFingerprintKey());
-        if(f==null)         return -1;
+        String key = getFingerprintKey();
+        Fingerprint f = Jenkins.getInstance().getFingerprintMap().get(key);
         FeatureBranchProperty p = getProperty();
-        RangeSet rs = new RangeSet(); // empty range set
-        if(p!=null)
-            rs = f.getRangeSet(p.getUpstreamProject());
-        else {
-            // we don't know for sure what is our upstream project.
-            Hashtable<String,RangeSet> usages = f.getUsages();
-            if(!usages.isEmpty())
-                rs = usages.values().iterator().next();
+        AbstractProject<?,?> up = p!=null ? p.getUpstreamProject() : null;
+
+        if (f!=null) {
+            // the upstream build may not have been written to the fingerprint yet
+            int pending = FingerprintRecorder.get().getPendingBuildNumber(key, up!=null ? up.getFullName() : null);
+            if (pending>=0) {
+                RangeSet recorded = up!=null ? f.getRangeSet(up) : new RangeSet();
+                return recorded.isEmpty() ? pending : Math.min(pending, recorded.min());
+            }
+
+            RangeSet rs = new RangeSet(); // empty range set
+            if(p!=null)
+                rs = f.getRangeSet(up);
+            else {
+                // we don't know for sure what is our upstream project.
+                Hashtable<String,RangeSet> usages = f.getUsages();
+                if(!usages.isEmpty())
+                    rs = usages.values().iterator().next();
+            }
+            if(!rs.isEmpty())   return rs.min();
         }
-        if(rs.isEmpty())    return -1;
 
-        return rs.min();
+        // the fingerprint doesn't know. the first upstream build that built our commit has it
+        if(up==null || !isIntegrated())  return -1;
+        int n = UpstreamBuildIndex.of(up).getFirstBuildContaining(integratedRevision);
+        if(n>=0 && f!=null)
+            FingerprintRecorder.get().record(key, up.getFullName(), n);
+        return n;
     }
 
     /**
@@ -268,18 +482,99 @@ public class IntegrateAction extends AbstractSvnmergeTaskAction<IntegrateSetting
      * Otherwise null.
      */
     public static Fingerprint getIntegrationFingerprint(Entry changeEntry) throws IOException {
+        String key = getIntegrationFingerprintKey(changeEntry);
+        if (key!=null)
+            return Jenkins.getInstance().getFingerprintMap().get(key);
+        return null;
+    }
+
+    /**
+     * Same as {@link #getIntegrationFingerprint(Entry)}, except this only computes the fingerprint ID
+     * without loading it.
+     */
+    public static String getIntegrationFingerprintKey(Entry changeEntry) {
         if (changeEntry instanceof LogEntry) {
             LogEntry le = (LogEntry) changeEntry;
             String msg = changeEntry.getMsg().trim();
             if(msg.startsWith(COMMIT_MESSAGE_PREFIX) && msg.contains(COMMIT_MESSAGE_SUFFIX + "\n")) {
                 String s = msg.substring(0, msg.indexOf(COMMIT_MESSAGE_SUFFIX) + COMMIT_MESSAGE_SUFFIX.length());
                 // this build is merging an integration. Leave this in the record
-                return Jenkins.getInstance().getFingerprintMap().get(Util.getDigestOf(s + "#" + le.getRevision()));
+                return Util.getDigestOf(s + "#" + le.getRevision());
             }
         }
         return null;
     }
 
+    /**
+     * Gets the integration action of the build that isn't persisted yet, creating one if necessary.
+     *
+     * <p>
+     * The same instance is handed out as long as the build stays in memory, since it tracks
+     * the integration in progress and what the build checked out.
+     */
+    private static IntegrateAction getTransient(AbstractBuild<?,?> build) {
+        synchronized (TRANSIENTS) {
+            SoftReference<IntegrateAction> ref = TRANSIENTS.get(build);
+            IntegrateAction ia = ref!=null ? ref.get() : null;
+            if (ia==null)
+                TRANSIENTS.put(build, new SoftReference<IntegrateAction>(ia = new IntegrateAction(build)));
+            return ia;
+        }
+    }
+
+    /**
+     * The action refers back to the build, so it's held softly, just like builds themselves are,
+     * to let the build go away.
+     */
+    private static final Map<AbstractBuild<?,?>,SoftReference<IntegrateAction>> TRANSIENTS = new WeakHashMap<AbstractBuild<?,?>,SoftReference<IntegrateAction>>();
+
+    /**
+     * Captures what to integrate, once the code has been checked out.
+     */
+    @Extension
+    public static class SCMListenerImpl extends SCMListener {
+        @Override
+        public void onCheckout(Run<?,?> build, SCM scm, FilePath workspace, TaskListener listener, File changelogFile, SCMRevisionState pollingBaseline) {
+            if (!(build instanceof AbstractBuild))
+                return;
+            AbstractBuild<?,?> b = (AbstractBuild<?,?>) build;
+            if (b.getProject().getProperty(FeatureBranchProperty.class)==null)
+                return;
+            IntegrateAction ia = b.getAction(IntegrateAction.class);
+            if (ia!=null)
+                ia.captureSvnInfo();
+        }
+    }
+
+    /**
+     * Provides the {@link IntegrateAction} to the builds of feature branches that aren't integrated.
+     */
+    @Extension
+    public static class TransientActionFactoryImpl extends TransientActionFactory<AbstractBuild> {
+        @Override
+        public Class<AbstractBuild> type() {
+            return AbstractBuild.class;
+        }
+
+        @Override
+        public Class<? extends Action> actionType() {
+            return IntegrateAction.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(AbstractBuild target) {
+            AbstractBuild<?,?> b = target;
+            if (b.getProject().getProperty(FeatureBranchProperty.class)==null)
+                return Collections.emptyList();
+            // persisted actions only, so as not to come back here
+            for (Action a : b.getActions()) {
+                if (a instanceof IntegrateAction)
+                    return Collections.emptyList();
+            }
+            return Collections.singletonList(getTransient(b));
+        }
+    }
+
     // used to find integration commits. commit messages start with PREFIX, contains SUFFIX, followed by paths
     static final String COMMIT_MESSAGE_PREFIX = "Integrated ";
     static final String COMMIT_MESSAGE_SUFFIX = " (from Jenkins)";
@@ -5,4 +5,10 @@ package jenkins.plugins.svnmerge;
  */
 public class IntegrateSetting {
     // currently no parameters are defined
+
+    /**
+     * If the check made before queueing found something to integrate, the integration source of the last integration
+     * of the branch at that time. The task trusts that result as long as the branch hasn't been integrated since.
+     */
+    /*package*/ Long integrationNeededSince;
 }
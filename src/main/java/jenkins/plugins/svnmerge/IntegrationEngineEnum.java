@@ -0,0 +1,40 @@
+package jenkins.plugins.svnmerge;
+
+/**
+ * Enumerates the different ways {@link FeatureBranchProperty#integrate(hudson.model.TaskListener, String, long, String)}
+ * can merge a branch into its upstream.
+ */
+public enum IntegrationEngineEnum {
+
+	/**
+	 * Switch the workspace of the branch to the upstream, merge there,
+	 * then switch it back.
+	 */
+	WORKSPACE("Switch the branch workspace to the upstream"),
+	/**
+	 * Merge in a sparse scratch working copy of the upstream that only
+	 * contains the paths changed in the branch. See {@link SparseIntegration}.
+	 */
+	SPARSE("Sparse scratch working copy of the upstream"),
+	/**
+	 * Merge in a working copy of the upstream that's kept on the node and shared
+	 * by all the branches of the same upstream. See {@link UpstreamWorkingCopyPool}.
+	 */
+	POOLED("Shared working copy of the upstream on the node");
+
+	private String description;
+
+	private IntegrationEngineEnum(String description) {
+		this.description = description;
+	}
+
+	public String getName() {
+		return this.name();
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+}
@@ -0,0 +1,223 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes integrations into one upstream.
+ *
+ * <p>
+ * {@link IntegrationPublisher} only keeps builds of the same job from running concurrently,
+ * so without this, integrations from different branches into the same upstream race each other
+ * and all but one fail to commit because the upstream is out of date.
+ *
+ * <p>
+ * Integrations line up in the order they arrive, and only the one at the head of the line
+ * runs. Integrations into different upstreams don't wait for each other.
+ *
+ * <p>
+ * Integrations only take their place in line once they run, and hold their executor and workspace.
+ * Integrations that go through the Jenkins queue also stay there while another integration is in progress
+ * (see {@link QueueTaskDispatcherImpl}), so that they don't hold an executor and the workspace while they wait.
+ * @see IntegratableProject#getIntegrationQueue()
+ */
+public final class IntegrationQueue {
+    /**
+     * The integration at the head is the one in progress, and the rest are waiting.
+     */
+    private final LinkedList<Ticket> tickets = new LinkedList<Ticket>();
+
+    /**
+     * Number of integrations that went through this queue, and the total time they spent waiting.
+     */
+    private long completed;
+    private long totalWaitTime;
+
+    /**
+     * When the recent integrations finished, for computing the throughput.
+     */
+    private final LinkedList<Long> recentCompletions = new LinkedList<Long>();
+
+    private IntegrationQueue() {
+    }
+
+    /**
+     * Waits until all the integrations that came before us are done.
+     *
+     * <p>
+     * The caller must {@linkplain Ticket#leave() leave} the queue when the integration is over.
+     *
+     * @param name
+     *      Human readable name of the integration, such as the build being integrated.
+     */
+    public Ticket enter(String name, TaskListener listener) throws InterruptedException {
+        synchronized (this) {
+            Ticket t = new Ticket(name);
+            tickets.add(t);
+            if (tickets.getFirst()!=t) {
+                listener.getLogger().printf("Waiting for %d integration(s) ahead of us to finish. %s is being integrated\n",
+                        tickets.size()-1, tickets.getFirst().name);
+            }
+            try {
+                while (tickets.getFirst()!=t)
+                    wait();
+            } catch (InterruptedException e) {
+                tickets.remove(t);
+                notifyAll();
+                throw e;
+            }
+            t.started = System.currentTimeMillis();
+            return t;
+        }
+    }
+
+    private synchronized void leave(Ticket t) {
+        if (!tickets.remove(t))
+            return;     // already left
+        long now = System.currentTimeMillis();
+        completed++;
+        totalWaitTime += t.started-t.queued;
+        recentCompletions.add(now);
+        pruneCompletions(now);
+        notifyAll();
+    }
+
+    private void pruneCompletions(long now) {
+        for (Iterator<Long> itr = recentCompletions.iterator(); itr.hasNext(); ) {
+            if (itr.next() < now-THROUGHPUT_WINDOW)  itr.remove();
+            else                                    break;
+        }
+    }
+
+    /**
+     * Name of the integration in progress, or null if none.
+     */
+    public synchronized String getCurrent() {
+        return tickets.isEmpty() ? null : tickets.getFirst().name;
+    }
+
+    /**
+     * Names of the integrations waiting for their turn, in the order they'll run.
+     */
+    public synchronized List<String> getWaiting() {
+        List<String> r = new ArrayList<String>();
+        for (Ticket t : tickets.subList(Math.min(1,tickets.size()),tickets.size()))
+            r.add(t.name);
+        return r;
+    }
+
+    /**
+     * Number of integrations in progress or waiting.
+     */
+    public synchronized int getDepth() {
+        return tickets.size();
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Average time an integration waited for its turn, as a human readable string.
+     */
+    public synchronized String getAverageWaitTime() {
+        return Util.getTimeSpanString(completed==0 ? 0 : totalWaitTime/completed);
+    }
+
+    /**
+     * Number of integrations that finished in the last hour.
+     */
+    public synchronized int getThroughput() {
+        pruneCompletions(System.currentTimeMillis());
+        return recentCompletions.size();
+    }
+
+    /**
+     * A place in the queue.
+     */
+    public final class Ticket {
+        private final String name;
+        private final long queued = System.currentTimeMillis();
+        private long started;
+
+        private Ticket(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Lets the next integration run.
+         */
+        public void leave() {
+            IntegrationQueue.this.leave(this);
+        }
+    }
+
+    /**
+     * Gets the queue of the given upstream project.
+     */
+    public static IntegrationQueue of(AbstractProject<?,?> upstream) {
+        synchronized (QUEUES) {
+            IntegrationQueue q = QUEUES.get(upstream);
+            if (q==null)
+                QUEUES.put(upstream, q=new IntegrationQueue());
+            return q;
+        }
+    }
+
+    /**
+     * Kept outside {@link IntegratableProject}, which is recreated every time the upstream is reconfigured.
+     */
+    private static final Map<AbstractProject<?,?>,IntegrationQueue> QUEUES = new WeakHashMap<AbstractProject<?,?>,IntegrationQueue>();
+
+    /**
+     * Gets the integration that the given task of the Jenkins queue performs, if it's one.
+     */
+    private static IntegrateAction getIntegration(Queue.Task task) {
+        if (!(task instanceof AbstractSvnmergeTaskAction.TaskImpl))
+            return null;
+        AbstractSvnmergeTaskAction<?> a = ((AbstractSvnmergeTaskAction<?>.TaskImpl) task).getAction();
+        return a instanceof IntegrateAction ? (IntegrateAction) a : null;
+    }
+
+    /**
+     * Keeps a queued integration in the Jenkins queue while another integration into its upstream is in progress,
+     * so that it doesn't occupy an executor and the workspace while it waits.
+     *
+     * <p>
+     * This doesn't hold a place in line for the queued integration. A place in line belongs to an integration
+     * that already has its executor and workspace, or else a build that waits in line could be holding
+     * the very executor or workspace that the integration at the head needs to start.
+     */
+    @Extension
+    public static class QueueTaskDispatcherImpl extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            IntegrateAction a = getIntegration(item.task);
+            final IntegrationQueue q = a==null ? null : a.getIntegrationQueue();
+            final String current = q==null ? null : q.getCurrent();
+            if (current==null)
+                return null;
+            return new CauseOfBlockage() {
+                @Override
+                public String getShortDescription() {
+                    return "Waiting for the integration of "+current+" to finish";
+                }
+            };
+        }
+    }
+
+    private static final long THROUGHPUT_WINDOW = TimeUnit.HOURS.toMillis(1);
+}
@@ -7,8 +7,11 @@ import hudson.model.Job;
 import hudson.model.PermalinkProjectAction;
 import hudson.model.Run;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Project-level {@link Action} that shows the integration status on a feature branch job.
@@ -39,7 +42,35 @@ public class IntegrationStatusAction implements PermalinkProjectAction {
         return getLastIntegrateAction(project);
     }
 
+    /**
+     * Finds the last build that got integrated to the upstream.
+     *
+     * <p>
+     * This is recorded in {@link FeatureBranchState} as integrations happen, so that we don't
+     * have to load the build records one by one. We only look at the builds when the record
+     * is missing (such as for a job that predates it) or points to a build that's gone.
+     */
     static IntegrateAction getLastIntegrateAction(Job<?,?> j) {
+        FeatureBranchState state = FeatureBranchState.of(j);
+        Integer n = state.getLastIntegratedBuild();
+        if (n!=null) {
+            if (n==0)   return null;
+            Run<?,?> b = j.getBuildByNumber(n);
+            IntegrateAction ia = b==null ? null : b.getAction(IntegrateAction.class);
+            if (ia!=null && ia.isIntegrated())
+                return ia;
+        }
+
+        IntegrateAction ia = findLastIntegrateAction(j);
+        try {
+            state.setLastIntegration(ia);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the last integration of "+j.getFullName(), e);
+        }
+        return ia;
+    }
+
+    private static IntegrateAction findLastIntegrateAction(Job<?,?> j) {
         for(Run<?,?> b=j.getLastBuild(); b!=null; b=b.getPreviousBuild()) {
             IntegrateAction ia = b.getAction(IntegrateAction.class);
             if(ia!=null && ia.isIntegrated())
@@ -80,4 +111,6 @@ public class IntegrationStatusAction implements PermalinkProjectAction {
             return ia!=null ? ia.build : null;
         }
     });
+
+    private static final Logger LOGGER = Logger.getLogger(IntegrationStatusAction.class.getName());
 }
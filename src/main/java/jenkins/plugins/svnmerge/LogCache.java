@@ -0,0 +1,535 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNLogEntryPath;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log of a Subversion repository, kept on the controller so that the history doesn't have to be
+ * read from the server over and over.
+ *
+ * <p>
+ * Each repository has a file under <tt>$JENKINS_HOME/svnmerge/log-cache</tt>, which holds the revision, author,
+ * date, message, and changed paths of every revision from a floor revision up. New revisions are only ever
+ * appended, as they are fetched from the last cached revision on. The floor is picked when the cache is
+ * created, and older history is read from the server, since the first query shouldn't have to download
+ * the entire history of a big repository.
+ *
+ * <p>
+ * What's visible in the log depends on the credentials, so a repository has a separate cache for each
+ * {@linkplain SvnClientManagerPool#getKey(hudson.model.Job, hudson.scm.SubversionSCM.ModuleLocation) client key}.
+ * In memory, we only keep where each revision is in the file, for a bounded number of caches.
+ *
+ * <p>
+ * The log is fetched from the server without holding the lock of the cache. A query that's only a few revisions
+ * behind waits for them, but a bigger gap, such as when the cache is created, is filled in the background,
+ * and the query goes to the server in the mean time.
+ */
+final class LogCache {
+    private final File file;
+
+    /**
+     * Revisions in the ascending order, and where each record starts in {@link #file}.
+     * Only the first {@link #size} entries are used.
+     */
+    private long[] revisions = new long[256];
+    private long[] offsets = new long[256];
+    private int size;
+
+    /**
+     * The oldest revision this cache has. Null until the file is loaded or created.
+     */
+    private Long floor;
+
+    /**
+     * Is the cache being filled in the background?
+     */
+    private boolean filling;
+
+    /**
+     * Number of those who are using this cache, which keeps it in {@link #CACHES}. Guarded by {@link #CACHES}.
+     */
+    private int users;
+
+    private LogCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Feeds the log of the location of the given session to the handler, from the cache when possible.
+     *
+     * <p>
+     * Like {@link SVNRepository#log(String[], long, long, boolean, boolean, long, ISVNLogEntryHandler)}
+     * with the changed paths and the strict node history, entries come from the start revision down to the end,
+     * and stop at the revision where the location was created.
+     *
+     * @param repo
+     *      Session opened at the location whose log is wanted. It's briefly moved to the repository root
+     *      to bring the cache up to date, then put back. Its authentication manager is used to fill the cache
+     *      in the background.
+     * @param clientKey
+     *      See {@link SvnClientManagerPool#getKey(hudson.model.Job, hudson.scm.SubversionSCM.ModuleLocation)}
+     * @return
+     *      false if the cache can't answer, in which case nothing was fed and the caller should ask the server.
+     *      This includes when the log of the repository root can't be read with the credentials of the session.
+     */
+    static boolean log(SVNRepository repo, String clientKey, long start, long end, ISVNLogEntryHandler handler) throws SVNException {
+        if (start<end)  return false;
+        SVNURL root;
+        String uuid;
+        try {
+            root = repo.getRepositoryRoot(true);
+            uuid = repo.getRepositoryUUID(true);
+        } catch (SVNException e) {
+            LOGGER.log(Level.FINE, "Failed to identify the repository of "+repo.getLocation(), e);
+            return false;
+        }
+        String path = repo.getLocation().getPath().substring(root.getPath().length());
+        if (!path.startsWith("/"))
+            path = "/"+path;
+
+        LogCache cache = of(uuid, clientKey);
+        List<SVNLogEntry> entries;
+        try {
+            entries = cache.get(repo, root, path, start, end);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to use the log cache "+cache.file, e);
+            return false;
+        } finally {
+            cache.release();
+        }
+        if (entries==null) {
+            MISSES.incrementAndGet();
+            return false;
+        }
+        HITS.incrementAndGet();
+        // outside the lock, since the handler may take a while, or throw to stop early
+        for (SVNLogEntry e : entries)
+            handler.handleLogEntry(e);
+        return true;
+    }
+
+    /**
+     * Gets the cache for the given repository and credentials. The caller must {@linkplain #release() release} it.
+     */
+    private static LogCache of(String uuid, String clientKey) {
+        String key = Util.getDigestOf(uuid+"|"+clientKey);
+        synchronized (CACHES) {
+            LogCache c = CACHES.get(key);
+            if (c==null)
+                CACHES.put(key, c=new LogCache(new File(getRootDir(), key+".log")));
+            c.users++;
+            return c;
+        }
+    }
+
+    private void retain() {
+        synchronized (CACHES) {
+            users++;
+        }
+    }
+
+    private void release() {
+        synchronized (CACHES) {
+            users--;
+        }
+    }
+
+    private static File getRootDir() {
+        return new File(Jenkins.getInstance().getRootDir(), "svnmerge/log-cache");
+    }
+
+    /**
+     * Newest revision in the cache, or {@link #floor}-1 if it's empty.
+     */
+    private long getHighest() {
+        return size>0 ? revisions[size-1] : floor-1;
+    }
+
+    /**
+     * Reads the entries from the cache, after bringing it up to date if it's only a few revisions behind.
+     *
+     * @param end
+     *      The oldest revision the caller is interested in. Used as the floor if the cache is new.
+     * @return null
+     *      if the cache can't answer.
+     */
+    private List<SVNLogEntry> get(SVNRepository repo, SVNURL root, String path, long start, long end) throws IOException {
+        long from;
+        synchronized (this) {
+            if (floor==null)
+                load(Math.max(end, start-MAX_INITIAL_REVISIONS));
+            from = getHighest()+1;
+            if (from>start)
+                return read(path, start, end);
+            if (start-from>=MAX_SYNC_REVISIONS) {
+                // too many to wait for
+                scheduleFill(repo, root, start);
+                return null;
+            }
+        }
+
+        // the other users of the cache don't wait for the server
+        List<SVNLogEntry> fetched = fetch(repo, root, from, start);
+        if (fetched==null)  return null;
+        synchronized (this) {
+            append(fetched);
+            return read(path, start, end);
+        }
+    }
+
+    /**
+     * Reads the log of the given revisions of the whole repository from the server.
+     *
+     * @return null
+     *      if it can't be read, such as when the credentials don't give access to the repository root.
+     */
+    private List<SVNLogEntry> fetch(SVNRepository repo, SVNURL root, long from, long to) {
+        final List<SVNLogEntry> r = new ArrayList<SVNLogEntry>();
+        SVNURL location = repo.getLocation();
+        try {
+            repo.setLocation(root, false);
+            repo.log(new String[]{""}, from, to, true, false, 0, new ISVNLogEntryHandler() {
+                public void handleLogEntry(SVNLogEntry e) {
+                    r.add(e);
+                }
+            });
+            LOGGER.fine("Fetched the log of rev."+from+" to rev."+to+" for "+file);
+            return r;
+        } catch (SVNException e) {
+            LOGGER.log(Level.FINE, "Failed to fetch the log of rev."+from+" to rev."+to+" of "+root, e);
+            return null;
+        } finally {
+            try {
+                repo.setLocation(location, false);
+            } catch (SVNException e) {
+                LOGGER.log(Level.WARNING, "Failed to move the session back to "+location, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries that the cache doesn't have yet at the end of the file.
+     */
+    private void append(List<SVNLogEntry> entries) throws IOException {
+        assert Thread.holdsLock(this);
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.seek(f.length());
+            for (SVNLogEntry e : entries)
+                append(f, e);
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Fills the cache up to the given revision in the background, unless that's already happening.
+     * This uses its own session, with the credentials of the given one.
+     */
+    private void scheduleFill(SVNRepository repo, final SVNURL root, final long to) {
+        assert Thread.holdsLock(this);
+        if (filling)    return;
+        final SVNRepository session;
+        try {
+            session = SVNRepositoryFactory.create(root);
+        } catch (SVNException e) {
+            LOGGER.log(Level.FINE, "Failed to open a session to "+root, e);
+            return;
+        }
+        session.setAuthenticationManager(repo.getAuthenticationManager());
+        filling = true;
+        retain();
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    fill(session, root, to);
+                } finally {
+                    session.closeSession();
+                    synchronized (LogCache.this) {
+                        filling = false;
+                    }
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the log up to the given revision, {@link #FILL_BATCH} revisions at a time,
+     * and appends each batch under the lock.
+     */
+    private void fill(SVNRepository session, SVNURL root, long to) {
+        try {
+            long from;
+            synchronized (this) {
+                from = getHighest()+1;
+            }
+            while (from<=to) {
+                long batchEnd = Math.min(to, from+FILL_BATCH-1);
+                List<SVNLogEntry> fetched = fetch(session, root, from, batchEnd);
+                if (fetched==null)  return;
+                synchronized (this) {
+                    append(fetched);
+                    from = Math.max(batchEnd, getHighest())+1;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to fill the log cache "+file, e);
+        }
+    }
+
+    /**
+     * Reads the file, or creates it with the given floor.
+     */
+    private void load(long newFloor) throws IOException {
+        if (file.exists()) {
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                if (f.length()>=HEADER_SIZE && f.readLong()==MAGIC) {
+                    floor = f.readLong();
+                    long pos = HEADER_SIZE, len = f.length();
+                    while (pos+4+8<=len) {
+                        f.seek(pos);
+                        int n = f.readInt();
+                        if (n<8 || pos+4+n>len)    break;
+                        add(f.readLong(), pos);
+                        pos += 4+n;
+                    }
+                    if (pos<len) {
+                        // the last append didn't complete
+                        LOGGER.info("Discarding the incomplete tail of "+file);
+                        f.setLength(pos);
+                    }
+                    return;
+                }
+            } finally {
+                f.close();
+            }
+            LOGGER.warning("Discarding the unrecognizable log cache "+file);
+        }
+
+        file.getParentFile().mkdirs();
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(0);
+            f.writeLong(MAGIC);
+            f.writeLong(newFloor);
+        } finally {
+            f.close();
+        }
+        floor = newFloor;
+        size = 0;
+    }
+
+    private void add(long revision, long offset) {
+        if (size==revisions.length) {
+            revisions = Arrays.copyOf(revisions, size*2);
+            offsets = Arrays.copyOf(offsets, size*2);
+        }
+        revisions[size] = revision;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Writes a log entry at the end of the file, in one write so that a crash leaves at most one incomplete record.
+     */
+    private void append(RandomAccessFile f, SVNLogEntry e) throws IOException {
+        if (e.getRevision()<=getHighest())  return;     // already have it
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(0);    // the length, filled in below
+        out.writeLong(e.getRevision());
+        out.writeLong(e.getDate()!=null ? e.getDate().getTime() : -1);
+        writeString(out, e.getAuthor());
+        writeString(out, e.getMessage());
+        Map<String,SVNLogEntryPath> paths = e.getChangedPaths();
+        out.writeInt(paths==null ? 0 : paths.size());
+        if (paths!=null) {
+            for (SVNLogEntryPath p : paths.values()) {
+                out.writeChar(p.getType());
+                writeString(out, p.getPath());
+                writeString(out, p.getCopyPath());
+                out.writeLong(p.getCopyRevision());
+            }
+        }
+        out.flush();
+        byte[] record = buf.toByteArray();
+        int n = record.length-4;
+        record[0] = (byte)(n>>>24);
+        record[1] = (byte)(n>>>16);
+        record[2] = (byte)(n>>>8);
+        record[3] = (byte)n;
+
+        long offset = f.getFilePointer();
+        f.write(record);
+        add(e.getRevision(), offset);
+    }
+
+    /**
+     * Reads the entries that changed the given path, newest first, until the revision the path was created in.
+     *
+     * @return null
+     *      if the cache doesn't go back far enough.
+     */
+    private List<SVNLogEntry> read(String path, long start, long end) throws IOException {
+        List<SVNLogEntry> r = new ArrayList<SVNLogEntry>();
+        int i = Arrays.binarySearch(revisions, 0, size, start);
+        if (i<0)    i = -(i+1)-1;   // the newest revision before start
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            for (; i>=0 && revisions[i]>=end; i--) {
+                SVNLogEntry e = readEntry(f, offsets[i]);
+                Boolean created = affects(e, path);
+                if (created==null)  continue;
+                r.add(e);
+                if (created)
+                    return r;   // the beginning of the history of this path
+            }
+        } finally {
+            f.close();
+        }
+        // unless the history ended above, we need to have gone as far as asked
+        return end>=floor ? r : null;
+    }
+
+    /**
+     * Does the given entry belong to the log of the given path?
+     *
+     * @return
+     *      null if not, true if this is where the path was created, false otherwise.
+     */
+    private static Boolean affects(SVNLogEntry e, String path) {
+        Boolean r = null;
+        for (SVNLogEntryPath p : e.getChangedPaths().values()) {
+            String changed = p.getPath();
+            boolean self = changed.equals(path) || path.startsWith(changed+"/");
+            if (self && (p.getType()==SVNLogEntryPath.TYPE_ADDED || p.getType()==SVNLogEntryPath.TYPE_REPLACED))
+                return true;
+            if (self || changed.startsWith(path+"/"))
+                r = false;
+        }
+        return r;
+    }
+
+    private static SVNLogEntry readEntry(RandomAccessFile f, long offset) throws IOException {
+        f.seek(offset);
+        byte[] record = new byte[f.readInt()];
+        f.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long revision = in.readLong();
+        long date = in.readLong();
+        String author = readString(in);
+        String message = readString(in);
+        int n = in.readInt();
+        Map<String,SVNLogEntryPath> paths = new LinkedHashMap<String,SVNLogEntryPath>();
+        for (int i=0; i<n; i++) {
+            char type = in.readChar();
+            String path = readString(in);
+            String copyPath = readString(in);
+            long copyRevision = in.readLong();
+            paths.put(path, new SVNLogEntryPath(path, type, copyPath, copyRevision));
+        }
+        return new SVNLogEntry(paths, revision, author, date>=0 ? new Date(date) : null, message);
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF(String)}, this handles long commit messages, and null.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s==null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n<0)    return null;
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Number of history queries that were answered from the cache, since Jenkins started.
+     */
+    static long getHitCount() {
+        return HITS.get();
+    }
+
+    /**
+     * Number of history queries that had to go to the server, because they went back further than the cache.
+     */
+    static long getMissCount() {
+        return MISSES.get();
+    }
+
+    /**
+     * Caches by the digest of the repository UUID and the client key, the least recently used first.
+     * Those in use are kept even if there are too many, so that a file never has two writers.
+     */
+    private static final Map<String,LogCache> CACHES = new LinkedHashMap<String,LogCache>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,LogCache> eldest) {
+            return size()>MAX_CACHES && eldest.getValue().users==0;
+        }
+    };
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static final long MAGIC = 0x53564e4d4c4f4731L;     // "SVNMLOG1"
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * When a cache is created, how many revisions it goes back at most.
+     */
+    private static final long MAX_INITIAL_REVISIONS = Long.getLong(LogCache.class.getName()+".maxInitialRevisions", 10000);
+
+    /**
+     * How many revisions a query waits for when the cache is behind. More than that are fetched in the background.
+     */
+    private static final long MAX_SYNC_REVISIONS = Long.getLong(LogCache.class.getName()+".maxSyncRevisions", 100);
+
+    /**
+     * How many revisions the background fill fetches at a time.
+     */
+    private static final long FILL_BATCH = Long.getLong(LogCache.class.getName()+".fillBatch", 1000);
+
+    /**
+     * How many caches are kept in memory.
+     */
+    private static final int MAX_CACHES = Integer.getInteger(LogCache.class.getName()+".maxCaches", 64);
+
+    private static final Logger LOGGER = Logger.getLogger(LogCache.class.getName());
+}
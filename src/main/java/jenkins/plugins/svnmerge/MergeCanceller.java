@@ -0,0 +1,128 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.AbortException;
+import org.tmatesoft.svn.core.ISVNCanceller;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the Subversion operations of a rebase or an integration when the task is aborted,
+ * or when one of its phases takes longer than it's allowed to.
+ *
+ * <p>
+ * Aborting a task interrupts the thread that runs it (on an agent, remoting interrupts the thread
+ * that runs the {@link hudson.FilePath.FileCallable}), but SVNKit doesn't notice interruptions by itself.
+ * It does ask its {@link ISVNCanceller} between events, and its connections ask it between the chunks
+ * they read, so that's where we stop. A hung operation that produces no events at all can't be stopped
+ * this way, but that's rare compared to the merges that go on for hours.
+ *
+ * <p>
+ * The operation is split into phases, such as updating the workspace or merging, each with its own deadline,
+ * so that a slow but progressing integration isn't killed just because the whole thing takes long.
+ * When an operation is stopped, {@link #getReason()} says which phase it was in.
+ */
+class MergeCanceller implements ISVNCanceller {
+    /**
+     * How long each phase is allowed to take, in milliseconds. 0 for no limit.
+     */
+    private final long timeout;
+
+    private volatile String phase = "starting";
+    private volatile long deadline;
+
+    /**
+     * Why the operation was stopped, or null if it wasn't.
+     */
+    private volatile String reason;
+
+    /**
+     * True if the thread was found interrupted, so that {@link #resume()} can put the flag back.
+     */
+    private volatile boolean interrupted;
+
+    /**
+     * While suspended, nothing is cancelled. See {@link #suspend()}.
+     */
+    private volatile boolean suspended;
+
+    /**
+     * @param timeout
+     *      How many minutes each phase is allowed to take. 0 for no limit.
+     */
+    MergeCanceller(int timeout) {
+        this.timeout = TimeUnit.MINUTES.toMillis(timeout);
+    }
+
+    /**
+     * Marks the start of the next phase, which restarts the clock.
+     *
+     * @param phase
+     *      Describes what's being done, such as "merging the upstream", for the messages.
+     */
+    void enter(String phase) {
+        this.phase = phase;
+        this.deadline = timeout>0 ? System.currentTimeMillis()+timeout : 0;
+    }
+
+    String getPhase() {
+        return phase;
+    }
+
+    public void checkCancelled() throws SVNCancelException {
+        if (suspended)  return;
+        if (reason==null) {
+            if (Thread.currentThread().isInterrupted()) {
+                interrupted = true;
+                reason = "Aborted while "+phase;
+            } else if (deadline>0 && System.currentTimeMillis()>deadline) {
+                reason = "Timed out after "+TimeUnit.MILLISECONDS.toMinutes(timeout)+" minute(s) while "+phase;
+            }
+        }
+        if (reason!=null)
+            throw new SVNCancelException(SVNErrorMessage.create(SVNErrorCode.CANCELLED, reason));
+    }
+
+    /**
+     * True if this canceller stopped the operation.
+     */
+    boolean isAborted() {
+        return reason!=null;
+    }
+
+    /**
+     * Why the operation was stopped, including the phase, or null if it wasn't.
+     */
+    String getReason() {
+        return reason;
+    }
+
+    /**
+     * Lets the clean up after an abort run to completion. The interrupt flag of the current thread is cleared
+     * until {@link #resume()}, since SVNKit would otherwise fail the clean up on the first blocking call.
+     */
+    void suspend() {
+        suspended = true;
+        if (Thread.interrupted())
+            interrupted = true;
+    }
+
+    void resume() {
+        suspended = false;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Reports the abort. An interruption stays an {@link InterruptedException}, so that
+     * the task is recorded as aborted, and a timeout fails the task with the reason.
+     */
+    void rethrow() throws IOException, InterruptedException {
+        if (interrupted)
+            throw new InterruptedException(reason);
+        throw new AbortException(reason);
+    }
+}
@@ -0,0 +1,476 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.scm.SubversionEventHandlerImpl;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNEvent;
+import org.tmatesoft.svn.core.wc.SVNEventAction;
+import org.tmatesoft.svn.core.wc.SVNInfo;
+import org.tmatesoft.svn.core.wc.SVNStatus;
+import org.tmatesoft.svn.core.wc.SVNStatusClient;
+import org.tmatesoft.svn.core.wc.SVNStatusType;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.tmatesoft.svn.core.SVNDepth.*;
+
+/**
+ * Reports the progress of the Subversion operations done by
+ * {@link FeatureBranchProperty#rebase(hudson.model.TaskListener, long)} and
+ * {@link FeatureBranchProperty#integrate(hudson.model.TaskListener, String, long, String)},
+ * and keeps track of the conflicts found during merges.
+ *
+ * <p>
+ * In the fail-fast mode, a merge is cancelled as soon as the first conflict is found,
+ * since the merge is going to be reverted anyway.
+ *
+ * <p>
+ * This also remembers the paths touched by merges, so that a failed merge can be reverted
+ * without walking the whole working copy.
+ *
+ * <p>
+ * Unless it's verbose, this doesn't print a line for every file. A big merge would otherwise
+ * send megabytes of log over the remoting channel. Instead, only the conflicts and the files
+ * that are added, deleted, or replaced are listed, and the rest is counted. The counts are printed
+ * periodically as progress, and as a summary at the end of each merge. The log should be
+ * {@linkplain #batch(TaskListener) batched}, so that these lines travel in a few chunks.
+ *
+ * <p>
+ * Whether an operation should be stopped because the task was aborted or has taken too long
+ * is up to the {@link MergeCanceller}, which the handlers of the same task share.
+ */
+class MergeEventHandler extends SubversionEventHandlerImpl {
+    private static final Comparator<File> DEEPEST_FIRST = new Comparator<File>() {
+        public int compare(File a, File b) {
+            // children before their parents, so that nothing is reverted before what's underneath
+            return b.getAbsolutePath().compareTo(a.getAbsolutePath());
+        }
+    };
+
+    private final PrintStream logger;
+    private final String basePath;
+    private final boolean failFast;
+    private final boolean verbose;
+    private final MergeCanceller canceller;
+
+    /**
+     * Number of events by their actions, since the last summary. Only used unless {@link #verbose}.
+     */
+    private final Map<String,Integer> counts = new TreeMap<String,Integer>();
+
+    private long lastProgress = System.currentTimeMillis();
+
+    /**
+     * True while a merge is in progress. Other operations, such as reverting a failed merge,
+     * are never cancelled.
+     */
+    private volatile boolean merging;
+
+    private final List<String> conflicts = new ArrayList<String>();
+
+    /**
+     * Paths that the merges reported. These are the only paths that need reverting
+     * if the merge fails.
+     */
+    private final Set<File> touched = new HashSet<File>();
+
+    /**
+     * Subset of {@link #touched} that were added, deleted, or replaced.
+     * Reverting these require the whole subtree to be reverted.
+     */
+    private final Set<File> structural = new HashSet<File>();
+
+    /**
+     * Subset of {@link #structural} that the merges added. Reverting leaves them behind
+     * as unversioned files, which would obstruct the same merge if it's tried again.
+     */
+    private final Set<File> added = new HashSet<File>();
+
+    /**
+     * @param verbose
+     *      Print every file, as opposed to just the conflicts and the structural changes.
+     * @param canceller
+     *      Decides when to give up on the operation. If null, only an interruption stops it.
+     */
+    MergeEventHandler(PrintStream logger, File baseDir, boolean failFast, boolean verbose, MergeCanceller canceller) {
+        super(logger, baseDir);
+        this.logger = logger;
+        this.basePath = baseDir.getAbsolutePath();
+        this.failFast = failFast;
+        this.verbose = verbose;
+        this.canceller = canceller;
+    }
+
+    /**
+     * Marks the start of the next phase of the operation. See {@link MergeCanceller#enter(String)}.
+     */
+    void enter(String phase) {
+        if (canceller!=null)
+            canceller.enter(phase);
+    }
+
+    /**
+     * Buffers the log of the given listener, so that it's sent in chunks rather than line by line.
+     * The caller must flush it at the end.
+     */
+    static PrintStream batch(TaskListener listener) throws IOException {
+        // the bytes go straight into the listener's stream, so they have to be in its encoding
+        return new PrintStream(new BufferedOutputStream(listener.getLogger(), BATCH_SIZE), false, listener.getCharset().name());
+    }
+
+    @Override
+    public void handleEvent(SVNEvent event, double progress) throws SVNException {
+        if (verbose)
+            super.handleEvent(event, progress);
+        else
+            count(event);
+        File f = event.getFile();
+        if (f==null)    return;
+        if (isConflict(event)) {
+            synchronized (conflicts) {
+                conflicts.add(getRelativePath(f));
+            }
+        }
+        if (merging) {
+            synchronized (touched) {
+                touched.add(f);
+                if (isStructural(event))
+                    structural.add(f);
+                if (isAdd(event))
+                    added.add(f);
+            }
+        }
+    }
+
+    /**
+     * Counts the event, and prints it only if it's a conflict or a structural change.
+     */
+    private void count(SVNEvent event) {
+        SVNEventAction a = event.getAction();
+        if (a==null)    return;
+        String key = isConflict(event) ? "conflicted" : a.toString();
+        synchronized (counts) {
+            Integer n = counts.get(key);
+            counts.put(key, n==null ? 1 : n+1);
+        }
+        File f = event.getFile();
+        if (f!=null && (isConflict(event) || isStructural(event)))
+            logger.println("  "+key+" "+getRelativePath(f));
+        maybePrintProgress();
+    }
+
+    /**
+     * Prints the counts so far, if it's been a while since the last time.
+     */
+    private void maybePrintProgress() {
+        if (verbose)    return;
+        long now = System.currentTimeMillis();
+        synchronized (counts) {
+            if (now-lastProgress<PROGRESS_INTERVAL)
+                return;
+            lastProgress = now;
+            if (!counts.isEmpty())
+                logger.println("  ... "+formatCounts());
+        }
+        logger.flush();
+    }
+
+    /**
+     * Prints the counts since the last summary, and sends out what's buffered.
+     */
+    void printSummary() {
+        synchronized (counts) {
+            if (!counts.isEmpty())
+                logger.println("  Summary: "+formatCounts());
+            counts.clear();
+            lastProgress = System.currentTimeMillis();
+        }
+        logger.flush();
+    }
+
+    private String formatCounts() {
+        StringBuilder buf = new StringBuilder();
+        int total = 0;
+        for (Map.Entry<String,Integer> e : counts.entrySet()) {
+            if (buf.length()>0)     buf.append(", ");
+            buf.append(e.getKey()).append('=').append(e.getValue());
+            total += e.getValue();
+        }
+        return total+" path(s) ("+buf+")";
+    }
+
+    @Override
+    public void checkCancelled() throws SVNCancelException {
+        if (canceller!=null)
+            canceller.checkCancelled();
+        else
+            super.checkCancelled();
+        // SVNKit calls this often, even when there are no events
+        maybePrintProgress();
+        if (failFast && merging && hasConflicts())
+            throw new SVNCancelException(SVNErrorMessage.create(SVNErrorCode.CANCELLED, "Merge cancelled at the first conflict"));
+    }
+
+    private boolean isConflict(SVNEvent event) {
+        return event.getContentsStatus()==SVNStatusType.CONFLICTED
+            || event.getContentsStatus()==SVNStatusType.CONFLICTED_UNRESOLVED
+            || event.getPropertiesStatus()==SVNStatusType.CONFLICTED
+            || event.getPropertiesStatus()==SVNStatusType.CONFLICTED_UNRESOLVED
+            || event.getAction()==SVNEventAction.TREE_CONFLICT;
+    }
+
+    private boolean isStructural(SVNEvent event) {
+        SVNEventAction a = event.getAction();
+        return a==SVNEventAction.UPDATE_ADD || a==SVNEventAction.UPDATE_DELETE || a==SVNEventAction.UPDATE_REPLACE
+            || a==SVNEventAction.ADD || a==SVNEventAction.DELETE || a==SVNEventAction.COPY
+            || a==SVNEventAction.TREE_CONFLICT;
+    }
+
+    private boolean isAdd(SVNEvent event) {
+        SVNEventAction a = event.getAction();
+        return a==SVNEventAction.UPDATE_ADD || a==SVNEventAction.ADD || a==SVNEventAction.COPY;
+    }
+
+    private String getRelativePath(File f) {
+        String p = f.getAbsolutePath();
+        if (p.startsWith(basePath))
+            p = p.substring(basePath.length());
+        if (p.startsWith(File.separator))
+            p = p.substring(1);
+        return p.length()==0 ? "." : p;
+    }
+
+    /**
+     * Marks the start of a merge. Until {@link #mergeFinished()} is called,
+     * a conflict cancels the operation in the fail-fast mode.
+     */
+    void mergeStarted() {
+        merging = true;
+    }
+
+    void mergeFinished() {
+        merging = false;
+        if (!verbose)
+            printSummary();
+    }
+
+    /**
+     * Called when a merge throws {@link SVNCancelException}. If this was the cancellation we requested
+     * because of a conflict, swallow it. Otherwise it's a genuine cancellation, so rethrow.
+     */
+    void onCancelled(SVNCancelException e) throws SVNCancelException {
+        if (!failFast || !hasConflicts() || (canceller!=null && canceller.isAborted()))
+            throw e;
+        logger.println("Stopped merging at the first conflict");
+    }
+
+    boolean hasConflicts() {
+        synchronized (conflicts) {
+            return !conflicts.isEmpty();
+        }
+    }
+
+    /**
+     * Paths (relative to the base directory) that were reported to be in conflict.
+     */
+    List<String> getConflicts() {
+        synchronized (conflicts) {
+            return new ArrayList<String>(conflicts);
+        }
+    }
+
+    /**
+     * Reverts the changes made by the merges so far.
+     *
+     * <p>
+     * Reverting the whole working copy requires walking the entire tree, so we only revert the paths
+     * that the merges reported, plus their parents (for svn:mergeinfo and other property changes.)
+     * If that fails, or if any of those paths is still modified afterward, we fall back to reverting
+     * the whole working copy.
+     *
+     * @param root
+     *      Root of the working copy that the merge was done into.
+     */
+    void revert(SVNClientManager cm, File root) throws SVNException {
+        // once we've started, leaving the working copy half reverted is worse than finishing late
+        if (canceller!=null)
+            canceller.suspend();
+        try {
+            doRevert(cm, root);
+        } finally {
+            if (canceller!=null)
+                canceller.resume();
+        }
+    }
+
+    private void doRevert(SVNClientManager cm, File root) throws SVNException {
+        SVNWCClient wc = cm.getWCClient();
+
+        Set<File> shallow = new TreeSet<File>(DEEPEST_FIRST);
+        Set<File> deep = new TreeSet<File>(DEEPEST_FIRST);
+        Set<File> leftovers = new TreeSet<File>(DEEPEST_FIRST);
+        synchronized (touched) {
+            leftovers.addAll(added);
+            added.clear();
+            String rootPath = root.getAbsolutePath();
+            for (File f : touched) {
+                if (structural.contains(f))     deep.add(f);
+                else                            shallow.add(f);
+                for (File p=f.getParentFile(); p!=null && p.getAbsolutePath().startsWith(rootPath); p=p.getParentFile())
+                    shallow.add(p);
+            }
+            touched.clear();
+            structural.clear();
+        }
+        shallow.removeAll(deep);
+
+        if (!shallow.isEmpty() || !deep.isEmpty()) {
+            try {
+                if (!deep.isEmpty())
+                    wc.doRevert(deep.toArray(new File[deep.size()]), INFINITY, null);
+                if (!shallow.isEmpty())
+                    wc.doRevert(shallow.toArray(new File[shallow.size()]), EMPTY, null);
+                if (isReverted(cm, deep) && isReverted(cm, shallow)) {
+                    deleteUnversioned(cm, leftovers);
+                    return;
+                }
+                logger.println("Some changes are left after reverting the merged paths.");
+            } catch (SVNException e) {
+                logger.println("Failed to revert the merged paths: "+e.getLocalizedMessage());
+                wc.doCleanup(root);
+            }
+        }
+
+        logger.println("Reverting the whole workspace");
+        wc.doRevert(new File[]{root}, INFINITY, null);
+        deleteUnversioned(cm, leftovers);
+    }
+
+    /**
+     * Called when an operation in the working copy failed with {@link SVNCancelException}.
+     * If it's the {@link MergeCanceller} that stopped it, puts the working copy back in order,
+     * then reports the abort along with the phase we were in. Otherwise this does nothing,
+     * and it's up to the caller to report the failure.
+     *
+     * @param root
+     *      Root of the working copy that the operation was done in.
+     */
+    void onAborted(SVNClientManager cm, File root) throws IOException, InterruptedException {
+        onAborted(cm, root, null);
+    }
+
+    /**
+     * @param restore
+     *      Where the working copy was before the operation, if it may have been switched elsewhere.
+     */
+    void onAborted(SVNClientManager cm, File root, SVNInfo restore) throws IOException, InterruptedException {
+        if (canceller==null || !canceller.isAborted())
+            return;
+        logger.println(canceller.getReason());
+        canceller.suspend();
+        try {
+            // an update or a commit that was stopped midway leaves the working copy locked
+            cm.getWCClient().doCleanup(root);
+            boolean merged;
+            synchronized (touched) {
+                merged = !touched.isEmpty();
+            }
+            if (merged) {
+                logger.println("Reverting the changes merged so far");
+                revert(cm, root);
+            }
+            if (restore!=null && !restore.getURL().equals(cm.getWCClient().doInfo(root, null).getURL())) {
+                logger.println("Switching back to the branch ("+restore.getURL()+"@"+restore.getRevision()+")");
+                cm.getUpdateClient().doSwitch(root, restore.getURL(), restore.getRevision(), restore.getRevision(), INFINITY, false, true);
+            }
+        } catch (SVNException e) {
+            logger.println("Failed to clean up the workspace: "+e.getLocalizedMessage());
+        } finally {
+            canceller.resume();
+            logger.flush();
+        }
+        canceller.rethrow();
+    }
+
+    /**
+     * Deletes the files that the merge added, now that they are no longer under version control.
+     */
+    private void deleteUnversioned(SVNClientManager cm, Collection<File> files) {
+        SVNStatusClient sc = cm.getStatusClient();
+        for (File f : files) {
+            if (!f.exists())    continue;
+            try {
+                SVNStatus st = sc.doStatus(f, false);
+                if (st!=null && st.getContentsStatus()!=SVNStatusType.STATUS_UNVERSIONED)
+                    continue;
+            } catch (SVNException e) {
+                // not under version control
+            }
+            try {
+                Util.deleteRecursive(f);
+            } catch (IOException e) {
+                logger.println("Failed to delete "+f+": "+e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Verifies that none of the given paths have local modifications.
+     */
+    private boolean isReverted(SVNClientManager cm, Collection<File> paths) throws SVNException {
+        SVNStatusClient sc = cm.getStatusClient();
+        for (File f : paths) {
+            SVNStatus st;
+            try {
+                st = sc.doStatus(f, false);
+            } catch (SVNException e) {
+                continue;   // not under version control, such as a target that the merge skipped
+            }
+            if (st==null)   continue;
+            SVNStatusType c = st.getContentsStatus();
+            SVNStatusType p = st.getPropertiesStatus();
+            if (!(c==SVNStatusType.STATUS_NORMAL || c==SVNStatusType.STATUS_NONE
+               || c==SVNStatusType.STATUS_UNVERSIONED || c==SVNStatusType.STATUS_IGNORED))
+                return false;
+            if (!(p==SVNStatusType.STATUS_NORMAL || p==SVNStatusType.STATUS_NONE))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prints the conflicting paths, for the report.
+     */
+    void printConflicts() {
+        for (String c : getConflicts())
+            logger.println("  Conflict: "+c);
+    }
+
+    /**
+     * How much of the log is buffered before it's sent.
+     */
+    private static final int BATCH_SIZE = 64*1024;
+
+    /**
+     * How often the progress is printed, in milliseconds.
+     */
+    private static final long PROGRESS_INTERVAL = 10*1000;
+}
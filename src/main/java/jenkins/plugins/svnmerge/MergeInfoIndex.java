@@ -0,0 +1,152 @@
+package jenkins.plugins.svnmerge;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNMergeInfo;
+import org.tmatesoft.svn.core.SVNMergeInfoInheritance;
+import org.tmatesoft.svn.core.SVNMergeRange;
+import org.tmatesoft.svn.core.SVNMergeRangeList;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * svn:mergeinfo of the root of a branch, parsed into sorted revision intervals for each merge source,
+ * so that asking whether an upstream revision is merged is a binary search.
+ *
+ * <p>
+ * SVNKit reads and parses svn:mergeinfo again on every call, which adds up when the status of
+ * many feature branches is checked over and over. svn:mergeinfo of a given revision never changes,
+ * so the index is cached for each branch revision.
+ *
+ * <p>
+ * A non-inheritable range only covers some of the files, so the ranges are only followed up to the first one of those.
+ */
+final class MergeInfoIndex {
+    private final Map<SVNURL,Ranges> sources = new HashMap<SVNURL,Ranges>();
+
+    private MergeInfoIndex(Map<SVNURL,SVNMergeRangeList> mergeInfo) {
+        if (mergeInfo==null)    return;
+        for (Entry<SVNURL,SVNMergeRangeList> e : mergeInfo.entrySet())
+            sources.put(e.getKey(), new Ranges(e.getValue()));
+    }
+
+    /**
+     * Indexes the mergeinfo that SVNKit has already read, such as that of a working copy.
+     */
+    static MergeInfoIndex of(Map<SVNURL,SVNMergeRangeList> mergeInfo) {
+        return new MergeInfoIndex(mergeInfo);
+    }
+
+    /**
+     * Gets the index of svn:mergeinfo of the location of the given session, at the given revision.
+     *
+     * @param clientKey
+     *      See {@link SvnClientManagerPool#getKey(hudson.model.Job, hudson.scm.SubversionSCM.ModuleLocation)}
+     */
+    static MergeInfoIndex of(SVNRepository repo, String clientKey, long revision) throws SVNException {
+        String key = repo.getRepositoryUUID(true)+"|"+clientKey+"|"+repo.getLocation()+"@"+revision;
+        synchronized (CACHE) {
+            MergeInfoIndex i = CACHE.get(key);
+            if (i!=null)    return i;
+        }
+
+        Map<SVNURL,SVNMergeRangeList> mergeInfo = new HashMap<SVNURL,SVNMergeRangeList>();
+        Map<String,SVNMergeInfo> paths = repo.getMergeInfo(new String[]{""}, revision, SVNMergeInfoInheritance.EXPLICIT, false);
+        if (paths!=null) {
+            SVNURL root = repo.getRepositoryRoot(true);
+            for (SVNMergeInfo mi : paths.values()) {
+                for (Entry<String,SVNMergeRangeList> e : mi.getMergeSourcesToMergeLists().entrySet()) {
+                    String path = e.getKey().startsWith("/") ? e.getKey().substring(1) : e.getKey();
+                    mergeInfo.put(root.appendPath(path, false), e.getValue());
+                }
+            }
+        }
+
+        MergeInfoIndex i = new MergeInfoIndex(mergeInfo);
+        synchronized (CACHE) {
+            CACHE.put(key, i);
+        }
+        return i;
+    }
+
+    /**
+     * Is the given revision of the source merged?
+     */
+    boolean isMerged(SVNURL source, long revision) {
+        Ranges r = sources.get(source);
+        return r!=null && r.contains(revision);
+    }
+
+    /**
+     * Computes the revision of the source that everything up to is merged.
+     *
+     * @return -1
+     *      if there's no mergeinfo about the source.
+     */
+    long getMergedUpTo(SVNURL source) {
+        Ranges r = sources.get(source);
+        return r!=null ? r.getContiguousEnd() : -1;
+    }
+
+    /**
+     * Revisions merged from one source, as the sorted, non-overlapping intervals (starts[i],ends[i]],
+     * the way svn:mergeinfo has them.
+     */
+    private static final class Ranges {
+        private final long[] starts;
+        private final long[] ends;
+
+        Ranges(SVNMergeRangeList rl) {
+            SVNMergeRange[] ranges = rl.getRanges();
+            long[] s = new long[ranges.length];
+            long[] e = new long[ranges.length];
+            int n = 0;
+            for (SVNMergeRange r : ranges) {    // already sorted
+                if (!r.isInheritable())     break;      // nothing after this is known to be merged everywhere
+                long start = Math.min(r.getStartRevision(), r.getEndRevision());
+                long end = Math.max(r.getStartRevision(), r.getEndRevision());
+                if (n>0 && start<=e[n-1]) {
+                    e[n-1] = Math.max(e[n-1], end);     // adjacent or overlapping
+                } else {
+                    s[n] = start;
+                    e[n] = end;
+                    n++;
+                }
+            }
+            starts = Arrays.copyOf(s, n);
+            ends = Arrays.copyOf(e, n);
+        }
+
+        boolean contains(long revision) {
+            // the last interval that starts before the revision
+            int i = Arrays.binarySearch(starts, revision);
+            if (i<0)    i = -(i+1);
+            i--;
+            return i>=0 && revision<=ends[i];
+        }
+
+        /**
+         * Where the first interval ends. Anything after that has a gap before it.
+         */
+        long getContiguousEnd() {
+            return ends.length>0 ? ends[0] : -1;
+        }
+    }
+
+    /**
+     * Recently used indices, by the repository, credentials, location, and revision.
+     */
+    private static final Map<String,MergeInfoIndex> CACHE = new LinkedHashMap<String,MergeInfoIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<String,MergeInfoIndex> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    private static final int CACHE_SIZE = Integer.getInteger(MergeInfoIndex.class.getName()+".cacheSize", 256);
+}
@@ -12,6 +12,7 @@ import hudson.security.ACL;
 import hudson.security.Permission;
 import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
+import hudson.util.StreamTaskListener;
 import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.StaplerRequest;
@@ -92,24 +93,14 @@ public class RebaseAction extends AbstractSvnmergeTaskAction<RebaseSetting> {
     /*package*/ long perform(TaskListener listener, RebaseSetting param) throws IOException, InterruptedException {
         long rev = param.revision;
 
-        if (param.permalink!=null) {
-            AbstractProject<?, ?> up = getProperty().getUpstreamProject();
-            Permalink p = up.getPermalinks().get(param.permalink);
-            if (p!=null) {
-                Run<?,?> b = p.resolve(up);
-                if (b==null) {
-                    listener.getLogger().println("No build that matches "+p.getDisplayName()+". Rebase is no-nop.");
-                    return -1;
-                }
-
-                SubversionTagAction a = b.getAction(SubversionTagAction.class);
-                if (a==null)
-                    throw new AbortException("Unable to determine the Subversion revision number from "+b.getFullDisplayName());
-
-                // TODO: what to do if this involves multiple URLs?
-                SvnInfo sv = a.getTags().keySet().iterator().next();
-                rev = sv.revision;
+        Permalink p = getPermalink(param);
+        if (p!=null) {
+            Run<?,?> b = p.resolve(getProperty().getUpstreamProject());
+            if (b==null) {
+                listener.getLogger().println("No build that matches "+p.getDisplayName()+". Rebase is no-nop.");
+                return -1;
             }
+            rev = getRevision(b);
         }
 
         long integratedRevision = getProperty().rebase(listener, rev);
@@ -123,6 +114,86 @@ public class RebaseAction extends AbstractSvnmergeTaskAction<RebaseSetting> {
         return integratedRevision;
     }
 
+    /**
+     * Checks if the rebase would merge anything, without using the workspace.
+     *
+     * @return
+     *      false if the rebase is known to be a no-op.
+     */
+    /*package*/ boolean isRebaseNeeded(RebaseSetting param) throws IOException {
+        long rev = param.revision;
+
+        Permalink p = getPermalink(param);
+        if (p!=null) {
+            Run<?,?> b = p.resolve(getProperty().getUpstreamProject());
+            if (b==null)    return true;    // let perform() report this
+            rev = getRevision(b);
+        }
+
+        return getProperty().isRebaseNeeded(rev);
+    }
+
+    /**
+     * Checks if the upstream build that the permalink points to is already merged into this branch.
+     * Used to annotate the choices in the form, so this only looks at what's already known
+     * about the branch. See {@link FeatureBranchProperty#isUpstreamRevisionMerged(long)}.
+     */
+    public boolean isMerged(Permalink p) {
+        Run<?,?> b = p.resolve(getProperty().getUpstreamProject());
+        if (b==null)    return false;
+        try {
+            return getProperty().isUpstreamRevisionMerged(getRevision(b));
+        } catch (AbortException e) {
+            return false;   // the build doesn't tell which revision it's from
+        }
+    }
+
+    @Override
+    protected boolean isNoOp(RebaseSetting param) throws IOException {
+        if (workerThread!=null || isRebaseNeeded(param))
+            return false;
+
+        StreamTaskListener listener = new StreamTaskListener(getLogFile());
+        try {
+            listener.getLogger().println("No changes in the upstream since the last rebase. Skipping rebase.");
+        } finally {
+            listener.close();
+        }
+        return true;
+    }
+
+    /**
+     * Of two specific revisions, the later one is what the requester wants, and the latest revision
+     * is later than any specific one. Otherwise the newer request wins.
+     */
+    @Override
+    protected RebaseSetting merge(RebaseSetting queued, RebaseSetting newer) {
+        if (queued.permalink==null && queued.revision<0)
+            return queued;  // the latest revision already
+        if (queued.permalink==null && newer.permalink==null && newer.revision>=0)
+            return queued.revision>newer.revision ? queued : newer;
+        return newer;
+    }
+
+    private Permalink getPermalink(RebaseSetting param) {
+        if (param.permalink==null)  return null;
+        AbstractProject<?, ?> up = getProperty().getUpstreamProject();
+        return up.getPermalinks().get(param.permalink);
+    }
+
+    /**
+     * Determines the Subversion revision that the given upstream build was built from.
+     */
+    private long getRevision(Run<?,?> b) throws AbortException {
+        SubversionTagAction a = b.getAction(SubversionTagAction.class);
+        if (a==null)
+            throw new AbortException("Unable to determine the Subversion revision number from "+b.getFullDisplayName());
+
+        // TODO: what to do if this involves multiple URLs?
+        SvnInfo sv = a.getTags().keySet().iterator().next();
+        return sv.revision;
+    }
+
     /**
      * Cancels a rebase task in the queue, if any.
      */
@@ -50,7 +50,12 @@ public class RebaseBuilder extends Builder {
         }
 
     	RebaseAction rebaseAction = new  RebaseAction(project);
-    	long result = rebaseAction.perform(listener,new RebaseSetting(permalink));
+    	RebaseSetting setting = new RebaseSetting(permalink);
+    	if (!rebaseAction.isRebaseNeeded(setting)) {
+    	    listener.getLogger().println("No changes in the upstream since the last rebase. Skip rebase action.");
+    	    return true;
+    	}
+    	long result = rebaseAction.perform(listener,setting);
         if(result<0){
             build.setResult(Result.UNSTABLE);
         }
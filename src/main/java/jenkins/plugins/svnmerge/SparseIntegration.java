@@ -0,0 +1,312 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Util;
+import jenkins.plugins.svnmerge.FeatureBranchProperty.IntegrationResult;
+import jenkins.plugins.svnmerge.FeatureBranchProperty.UpstreamMerge;
+
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNLogEntryPath;
+import org.tmatesoft.svn.core.SVNMergeRange;
+import org.tmatesoft.svn.core.SVNMergeRangeList;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNInfo;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNUpdateClient;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.tmatesoft.svn.core.SVNDepth.*;
+import static org.tmatesoft.svn.core.wc.SVNRevision.*;
+
+/**
+ * Integrates a branch into the upstream without using the workspace of the branch.
+ *
+ * <p>
+ * Instead of switching the whole workspace to the upstream and back, the merge is done in
+ * a sparse scratch working copy of the upstream. It's checked out with the empty depth,
+ * and only the paths that the branch has changed (and their parent directories) are brought in.
+ *
+ * <p>
+ * Reintegrate merges refuse to work on sparse working copies, so this does the equivalent
+ * two-URL merge from the upstream (as of the last revision the branch has fully merged)
+ * to the branch, then records the branch in svn:mergeinfo of the upstream by itself.
+ * The integration commit is then recorded in svn:mergeinfo of the branch, which only takes
+ * the root of the branch.
+ */
+class SparseIntegration {
+    private final SVNClientManager cm;
+    private final PrintStream logger;
+    private final boolean failFast;
+    private final boolean verbose;
+    private final int retries;
+    private final long retryInterval;
+    private final MergeCanceller canceller;
+    private final String clientKey;
+
+    /**
+     * @param verbose
+     *      Log every file. See {@link MergeEventHandler}.
+     * @param retries
+     *      How many times the upstream commit is retried when it fails because the upstream has changed.
+     * @param retryInterval
+     *      Milliseconds to wait before the first retry. Each retry waits longer.
+     * @param canceller
+     *      Stops the integration when the task is aborted or takes too long.
+     * @param clientKey
+     *      Identifies the credentials of the client manager, for {@link LogCache}.
+     */
+    SparseIntegration(SVNClientManager cm, PrintStream logger, boolean failFast, boolean verbose, int retries, long retryInterval,
+                      MergeCanceller canceller, String clientKey) {
+        this.cm = cm;
+        this.logger = logger;
+        this.failFast = failFast;
+        this.verbose = verbose;
+        this.retries = retries;
+        this.retryInterval = retryInterval;
+        this.canceller = canceller;
+        this.clientKey = clientKey;
+    }
+
+    /**
+     * @param up
+     *      URL of the upstream to integrate into.
+     * @param branchURL
+     *      URL of the branch to be integrated.
+     * @param branchRev
+     *      Revision of the branch to be integrated. If -1, use the latest.
+     * @return
+     *      Always non-null. See {@link IntegrationResult}
+     */
+    IntegrationResult integrate(SVNURL up, SVNURL branchURL, long branchRev, String commitMessage) throws IOException, InterruptedException, SVNException {
+        cm.setCanceller(canceller);
+        try {
+            return doIntegrate(up, branchURL, branchRev, commitMessage);
+        } catch (SVNCancelException e) {
+            if (!canceller.isAborted())
+                throw e;
+            // nothing to revert, since the scratch working copies are thrown away anyway
+            logger.println(canceller.getReason());
+            canceller.rethrow();
+            throw e;
+        }
+    }
+
+    private IntegrationResult doIntegrate(final SVNURL up, final SVNURL branchURL, long branchRev, String commitMessage) throws IOException, InterruptedException, SVNException {
+        canceller.enter("examining the branch");
+        SVNWCClient wc = cm.getWCClient();
+        SVNRevision peg = branchRev >= 0 ? SVNRevision.create(branchRev) : HEAD;
+        SVNInfo branchInfo = wc.doInfo(branchURL, peg, peg);
+        final SVNRevision mergeRev = SVNRevision.create(branchRev >= 0 ? branchRev : branchInfo.getCommittedRevision().getNumber());
+        SVNURL root = branchInfo.getRepositoryRootURL();
+        String branchPath = getRepositoryPath(branchURL, root);
+
+        BranchHistory history = new BranchHistory(branchPath);
+        SVNRepository repo = cm.createRepository(branchURL, true);
+        if (!LogCache.log(repo, clientKey, mergeRev.getNumber(), 0, history))
+            repo.log(new String[]{""}, mergeRev.getNumber(), 0, true, true, 0, history);
+        if (history.branchPoint<0)
+            throw new IOException("Unable to determine where "+branchURL+" was branched off");
+        final long branchPoint = history.branchPoint;
+
+        // the upstream revision that the branch has merged everything up to
+        final long left = Math.max(branchPoint,
+                FeatureBranchProperty.getMergedUpTo(cm.getDiffClient().doGetMergedMergeInfo(branchURL, mergeRev), up));
+
+        File scratch = Util.createTempDir();
+        try {
+            File upstreamDir = new File(scratch, "upstream");
+            MergeEventHandler handler = new MergeEventHandler(logger, upstreamDir, failFast, verbose, canceller);
+            cm.setEventHandler(handler);
+
+            handler.enter("checking out the upstream");
+            SVNRevision headRev = wc.doInfo(up, HEAD, HEAD).getRevision();
+            logger.printf("Checking out %d paths of the upstream (%s) at rev.%s\n", history.paths.size(), up, headRev);
+            checkoutSparse(up, headRev, upstreamDir, history);
+
+            // done again by commitWithRetry if the upstream moves before the commit
+            UpstreamMerge merge = new UpstreamMerge() {
+                public void merge(SVNClientManager cm, File wc) throws SVNException {
+                    cm.getDiffClient().doMerge(up, SVNRevision.create(left), branchURL, mergeRev, wc, INFINITY, true, false, false, false);
+                    FeatureBranchProperty.addMergeInfo(cm, wc,
+                            Collections.singletonMap(branchURL, new SVNMergeRangeList(new SVNMergeRange(branchPoint, mergeRev.getNumber(), true))));
+                }
+            };
+
+            handler.enter("merging the branch into the upstream");
+            logger.printf("Merging %s (rev.%s) to the upstream\n", branchURL, mergeRev);
+            handler.mergeStarted();
+            try {
+                merge.merge(cm, upstreamDir);
+            } catch (SVNCancelException e) {
+                handler.onCancelled(e);
+            } finally {
+                handler.mergeFinished();
+            }
+            SVNCommitInfo ci = null;
+            if (!handler.hasConflicts()) {
+                logger.println("Committing changes to the upstream");
+                ci = FeatureBranchProperty.commitWithRetry(cm, handler, upstreamDir, branchURL, mergeRev,
+                        commitMessage+"\n"+branchURL+"@"+mergeRev, retries, retryInterval, logger, merge);
+            }
+            if (ci==null) {
+                logger.println("Found conflict with the upstream. Discarding this failed merge");
+                handler.printConflicts();
+                logger.println("Conflict found. Please sync with the upstream to resolve this error.");
+                return new IntegrationResult(-1,mergeRev);
+            }
+            long trunkCommit = ci.getNewRevision();
+            if (trunkCommit<0) {
+                logger.println("  No changes since the last integration");
+                return new IntegrationResult(0,mergeRev);
+            }
+            logger.println("  committed revision "+trunkCommit);
+
+            // the integration commit only brings the branch into the upstream, so merging it back into
+            // the branch changes nothing but svn:mergeinfo. record it there, so that the next rebase
+            // doesn't merge it. that only needs the root of the branch
+            File branchDir = new File(scratch, "branch");
+            cm.setEventHandler(new MergeEventHandler(logger, branchDir, failFast, verbose, canceller));
+            canceller.enter("recording the integration commit in the branch");
+            logger.printf("Recording rev.%s of the upstream %s in the branch\n", trunkCommit, up);
+            cm.getUpdateClient().doCheckout(branchURL, branchDir, HEAD, HEAD, EMPTY, false);
+            FeatureBranchProperty.addMergeInfo(cm, branchDir,
+                    Collections.singletonMap(up, new SVNMergeRangeList(new SVNMergeRange(trunkCommit-1, trunkCommit, true))));
+
+            String msg = RebaseAction.COMMIT_MESSAGE_PREFIX+"Rebasing with the integration commit that was just made in rev."+trunkCommit;
+            SVNCommitInfo bci = cm.getCommitClient().doCommit(new File[]{branchDir}, false, msg, null, null, false, false, EMPTY);
+            logger.println("  committed revision "+bci.getNewRevision());
+
+            return new IntegrationResult(trunkCommit,mergeRev);
+        } finally {
+            Util.deleteRecursive(scratch);
+        }
+    }
+
+    /**
+     * Checks out the upstream with the empty depth, then brings in the paths that the branch has changed.
+     *
+     * <p>
+     * A merge silently skips the changes to the paths that are beyond the depth of the working copy.
+     * So each directory that directly contains a changed path is brought in with its immediate children,
+     * which lets the merge add files and directories into it. The directories above only need to be there,
+     * and the paths that the branch deletes are brought in entirely.
+     */
+    private void checkoutSparse(SVNURL up, SVNRevision rev, File dir, BranchHistory history) throws SVNException {
+        SVNUpdateClient uc = cm.getUpdateClient();
+        uc.doCheckout(up, dir, rev, rev, EMPTY, false);
+
+        // parents always sort before their children
+        Map<String,SVNDepth> depths = new TreeMap<String,SVNDepth>();
+        for (String p : history.paths) {
+            String parent = getParent(p);
+            depths.put(parent, IMMEDIATES);
+            for (String a=parent; a.length()>0; ) {
+                a = getParent(a);
+                if (!depths.containsKey(a))
+                    depths.put(a, EMPTY);
+            }
+        }
+
+        // setting the depth of a directory resets the depth of its children, so go top down, one at a time.
+        // paths that don't exist in the upstream are simply not brought in
+        for (Map.Entry<String,SVNDepth> e : depths.entrySet()) {
+            if (e.getKey().length()==0 && e.getValue()==EMPTY)
+                continue;   // that's how it was checked out
+            uc.doUpdate(new File[]{new File(dir,e.getKey())}, rev, e.getValue(), false, true);
+        }
+
+        // deleting a directory requires its whole subtree
+        List<File> deleted = new ArrayList<File>();
+        for (String p : history.deleted)
+            deleted.add(new File(dir,p));
+        if (!deleted.isEmpty())
+            uc.doUpdate(deleted.toArray(new File[deleted.size()]), rev, INFINITY, false, true);
+    }
+
+    /**
+     * "a/b/c" to "a/b", and "a" to "".
+     */
+    private static String getParent(String path) {
+        int i = path.lastIndexOf('/');
+        return i<0 ? "" : path.substring(0,i);
+    }
+
+    /**
+     * Path of the given URL in the repository, such as "/branches/b1"
+     */
+    private static String getRepositoryPath(SVNURL url, SVNURL root) throws SVNException {
+        String p = url.getPath().substring(root.getPath().length());
+        if (!p.startsWith("/"))
+            p = "/"+p;
+        return p;
+    }
+
+    /**
+     * Collects the paths that the branch has changed since it was created, and where it was created from.
+     */
+    private static final class BranchHistory implements ISVNLogEntryHandler {
+        private final String branchPath;
+
+        /**
+         * Paths relative to the branch root, changed by commits other than our rebases.
+         */
+        final Set<String> paths = new TreeSet<String>();
+        final Set<String> deleted = new TreeSet<String>();
+
+        /**
+         * Upstream revision that the branch was copied from.
+         */
+        long branchPoint = -1;
+
+        BranchHistory(String branchPath) {
+            this.branchPath = branchPath;
+        }
+
+        public void handleLogEntry(SVNLogEntry e) throws SVNException {
+            // entries come from the newest, so the last one is the commit that created the branch.
+            // the branch can be made of several copies, so use the youngest copy source
+            long copied = -1;
+            for (SVNLogEntryPath p : e.getChangedPaths().values()) {
+                if (p.getCopyPath()!=null && (isInBranch(p.getPath()) || branchPath.startsWith(p.getPath()+"/")))
+                    copied = Math.max(copied, p.getCopyRevision());
+            }
+            if (copied>=0)
+                branchPoint = copied;
+
+            // the paths that only our rebases have changed are identical in the upstream
+            String message = e.getMessage();
+            if (message!=null && message.startsWith(RebaseAction.COMMIT_MESSAGE_PREFIX))
+                return;
+
+            for (SVNLogEntryPath p : e.getChangedPaths().values()) {
+                String path = p.getPath();
+                if (!path.startsWith(branchPath+"/"))   continue;
+                path = path.substring(branchPath.length()+1);
+                paths.add(path);
+                if (p.getType()==SVNLogEntryPath.TYPE_DELETED)
+                    deleted.add(path);
+            }
+        }
+
+        private boolean isInBranch(String path) {
+            return path.equals(branchPath) || path.startsWith(branchPath+"/");
+        }
+    }
+}
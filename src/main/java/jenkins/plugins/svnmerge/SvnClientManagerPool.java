@@ -0,0 +1,292 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+import hudson.scm.SCM;
+import hudson.scm.SubversionSCM;
+import hudson.scm.SubversionSCM.AdditionalCredentials;
+import hudson.scm.SubversionSCM.ModuleLocation;
+import hudson.scm.SvnClientManager;
+import jenkins.util.Timer;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the Subversion client managers around between merge operations, so that they can reuse
+ * the connections their repository pools hold, instead of authenticating to the server all over again.
+ *
+ * <p>
+ * This lives in each JVM that talks to the server, which means the controller as well as the agents
+ * where the rebases and integrations run. Client managers are keyed by the server, the credentials,
+ * and the context in which the credentials are looked up (see {@link #getKey(Job, ModuleLocation)}),
+ * so a client manager is only reused for the same credentials. Credentials can be updated under the same ID,
+ * so a reused client manager gets the authentication provider of the new lease.
+ *
+ * <p>
+ * A client manager isn't thread safe, so it's {@linkplain #lease(String, ISVNAuthenticationProvider) leased}
+ * to one operation at a time. Those that sit idle for too long, or that don't fit in the pool,
+ * are disposed, which closes their connections. While there are idle ones, the pool sweeps itself
+ * periodically, so that the connections don't stay open when nothing uses the pool.
+ */
+final class SvnClientManagerPool {
+    /**
+     * Idle client managers by their keys. The most recently used one is at the head of each list.
+     */
+    private static final Map<String,LinkedList<Idle>> IDLE = new HashMap<String,LinkedList<Idle>>();
+
+    private static int idleCount;
+
+    /**
+     * Is the next {@link #sweep()} scheduled?
+     */
+    private static boolean sweepScheduled;
+
+    private SvnClientManagerPool() {}
+
+    private static final class Idle {
+        final SvnClientManager manager;
+        final long since = System.currentTimeMillis();
+
+        Idle(SvnClientManager manager) {
+            this.manager = manager;
+        }
+    }
+
+    /**
+     * A client manager that's exclusively used by the caller until it's released.
+     */
+    static final class Lease {
+        private final String key;
+        private final SvnClientManager manager;
+        private boolean broken;
+        private boolean released;
+
+        private Lease(String key, SvnClientManager manager) {
+            this.key = key;
+            this.manager = manager;
+        }
+
+        SvnClientManager get() {
+            return manager;
+        }
+
+        SVNClientManager getCore() {
+            return manager.getCore();
+        }
+
+        /**
+         * Opens a session to the repository, reusing a connection of this client manager if there's one.
+         */
+        SVNRepository createRepository(SVNURL url) throws SVNException {
+            return manager.getCore().createRepository(url, true);
+        }
+
+        /**
+         * Marks that this client manager shouldn't be reused, such as after an error
+         * that may have left its connections in an unknown state.
+         */
+        void discard() {
+            broken = true;
+        }
+
+        /**
+         * Returns the client manager to the pool. Calling this more than once is harmless.
+         */
+        void release() {
+            synchronized (this) {
+                if (released)   return;
+                released = true;
+            }
+            // whatever the last user set up is meaningless to the next user
+            SVNClientManager cm = manager.getCore();
+            cm.setEventHandler(null);
+            cm.setCanceller(null);
+            if (broken)
+                dispose(manager);
+            else
+                put(key, manager);
+        }
+    }
+
+    /**
+     * Computes the key for the client managers used to talk to the given location on behalf of the given job.
+     *
+     * <p>
+     * Credentials are looked up in the context of the job, so the same credentials ID can resolve to
+     * different credentials in different folders. The key includes the folder as well as the credentials
+     * that the Subversion configuration of the job uses for other realms.
+     */
+    static String getKey(Job<?,?> job, ModuleLocation location) {
+        StringBuilder buf = new StringBuilder();
+        ModuleLocation expanded = Utility.getExpandedLocation(location, job);
+        try {
+            SVNURL url = expanded.getSVNURL();
+            buf.append(url.getProtocol()).append("://").append(url.getHost()).append(':').append(url.getPort());
+        } catch (SVNException e) {
+            buf.append(expanded.getURL());
+        }
+        buf.append('|').append(location.credentialsId);
+        buf.append('|').append(job.getParent().getFullName());
+        SCM scm = job instanceof AbstractProject ? ((AbstractProject<?,?>) job).getScm() : null;
+        if (scm instanceof SubversionSCM) {
+            for (AdditionalCredentials c : ((SubversionSCM) scm).getAdditionalCredentials())
+                buf.append('|').append(c.getRealm()).append('=').append(c.getCredentialsId());
+        }
+        return Util.getDigestOf(buf.toString());
+    }
+
+    /**
+     * Leases a client manager for the given key, creating one with the given authentication provider
+     * if there's none to reuse. A reused one switches to the given authentication provider, so that
+     * it sees the current secrets of the credentials.
+     *
+     * <p>
+     * The caller must {@linkplain Lease#release() release} the lease.
+     */
+    static Lease lease(String key, ISVNAuthenticationProvider provider) {
+        List<SvnClientManager> expired = new ArrayList<SvnClientManager>();
+        SvnClientManager m = null;
+        synchronized (SvnClientManagerPool.class) {
+            evictExpired(expired);
+            LinkedList<Idle> l = IDLE.get(key);
+            if (l!=null && !l.isEmpty()) {
+                m = l.removeFirst().manager;
+                idleCount--;
+                if (l.isEmpty())
+                    IDLE.remove(key);
+            }
+        }
+        for (SvnClientManager e : expired)
+            dispose(e);
+
+        if (m==null) {
+            LOGGER.fine("Creating a new client manager for "+key);
+            m = SubversionSCM.createClientManager(provider);
+        } else {
+            // the connections in the pool pick this up the next time they authenticate
+            m.getCore().setAuthenticationManager(SubversionSCM.createSvnAuthenticationManager(provider));
+        }
+        return new Lease(key, m);
+    }
+
+    private static void put(String key, SvnClientManager m) {
+        List<SvnClientManager> expired = new ArrayList<SvnClientManager>();
+        synchronized (SvnClientManagerPool.class) {
+            evictExpired(expired);
+            if (idleCount<MAX_IDLE) {
+                LinkedList<Idle> l = IDLE.get(key);
+                if (l==null)
+                    IDLE.put(key, l=new LinkedList<Idle>());
+                l.addFirst(new Idle(m));
+                idleCount++;
+                m = null;
+                scheduleSweep();
+            }
+        }
+        for (SvnClientManager e : expired)
+            dispose(e);
+        if (m!=null)
+            dispose(m);     // the pool is full
+    }
+
+    /**
+     * Makes sure that the idle client managers get disposed once they expire, even if the pool isn't used again.
+     */
+    private static void scheduleSweep() {
+        assert Thread.holdsLock(SvnClientManagerPool.class);
+        if (sweepScheduled)     return;
+        sweepScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sweep() {
+        List<SvnClientManager> expired = new ArrayList<SvnClientManager>();
+        synchronized (SvnClientManagerPool.class) {
+            sweepScheduled = false;
+            evictExpired(expired);
+            if (idleCount>0)
+                scheduleSweep();
+        }
+        for (SvnClientManager e : expired)
+            dispose(e);
+    }
+
+    /**
+     * Removes the client managers that have been idle for too long.
+     * The caller disposes them outside the lock, since that closes connections.
+     */
+    private static void evictExpired(List<SvnClientManager> expired) {
+        long limit = System.currentTimeMillis()-IDLE_TIMEOUT;
+        for (Iterator<LinkedList<Idle>> itr = IDLE.values().iterator(); itr.hasNext(); ) {
+            LinkedList<Idle> l = itr.next();
+            // the oldest ones are at the tail
+            while (!l.isEmpty() && l.getLast().since<limit) {
+                expired.add(l.removeLast().manager);
+                idleCount--;
+            }
+            if (l.isEmpty())
+                itr.remove();
+        }
+    }
+
+    /**
+     * Disposes all the idle client managers.
+     */
+    static void clear() {
+        List<SvnClientManager> all = new ArrayList<SvnClientManager>();
+        synchronized (SvnClientManagerPool.class) {
+            for (LinkedList<Idle> l : IDLE.values())
+                for (Idle i : l)
+                    all.add(i.manager);
+            IDLE.clear();
+            idleCount = 0;
+        }
+        for (SvnClientManager m : all)
+            dispose(m);
+    }
+
+    /**
+     * Number of client managers that are waiting to be reused.
+     */
+    static synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    private static void dispose(SvnClientManager m) {
+        try {
+            m.getCore().dispose();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to dispose the client manager", e);
+        }
+    }
+
+    /**
+     * How many idle client managers are kept in total.
+     */
+    private static final int MAX_IDLE = Integer.getInteger(SvnClientManagerPool.class.getName()+".maxIdle", 16);
+
+    /**
+     * How long an idle client manager is kept, in milliseconds.
+     */
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(Integer.getInteger(SvnClientManagerPool.class.getName()+".idleMinutes", 5));
+
+    private static final Logger LOGGER = Logger.getLogger(SvnClientManagerPool.class.getName());
+}
@@ -0,0 +1,325 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.scm.SCM;
+import hudson.scm.SVNRevisionState;
+import hudson.scm.SubversionSCM;
+import hudson.scm.SubversionSCM.ModuleLocation;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Revisions that the builds of an upstream project built, in the order of the build number.
+ *
+ * <p>
+ * This lets us find the first upstream build that contains an integration commit
+ * without relying on the fingerprints, which is how {@link IntegrateAction#getUpstreamBuildNumber()}
+ * normally finds it.
+ *
+ * <p>
+ * The index is built or loaded in the background the first time it's asked for,
+ * and it doesn't know any build until then. Changes are written in the background too,
+ * a little later, so that builds don't wait for the whole table to be rewritten.
+ */
+public final class UpstreamBuildIndex {
+    private transient Job<?,?> job;
+
+    /**
+     * Build numbers in the ascending order, and the revision each one built.
+     * Only the first {@link #size} entries are used.
+     */
+    private int[] numbers = new int[16];
+    private long[] revisions = new long[16];
+    private int size;
+
+    /**
+     * Loads or builds the index.
+     */
+    private transient FutureTask<Void> loading;
+
+    /**
+     * Until this is set, the index only has the builds that completed since it started loading.
+     */
+    private transient boolean loaded;
+
+    private transient boolean saveScheduled;
+
+    private UpstreamBuildIndex(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Finds the first build that built the given revision or later.
+     *
+     * <p>
+     * Revisions only grow as the build number grows, so this is a binary search.
+     *
+     * @return -1
+     *      if no such build is known, or if the index isn't ready yet.
+     */
+    public synchronized int getFirstBuildContaining(long revision) {
+        // a half-built index would point to a build that's too new
+        if (!loaded)    return -1;
+        int lo=0, hi=size;
+        while (lo<hi) {
+            int mid = (lo+hi)>>>1;
+            if (revisions[mid]<revision)    lo=mid+1;
+            else                            hi=mid;
+        }
+        return lo<size ? numbers[lo] : -1;
+    }
+
+    /*package*/ synchronized void add(int number, long revision) {
+        int i = Arrays.binarySearch(numbers, 0, size, number);
+        if (i>=0) {
+            revisions[i] = revision;
+            return;
+        }
+        i = -(i+1);
+        if (size==numbers.length) {
+            numbers = Arrays.copyOf(numbers, size*2);
+            revisions = Arrays.copyOf(revisions, size*2);
+        }
+        // builds usually complete in order, so this rarely moves anything
+        System.arraycopy(numbers, i, numbers, i+1, size-i);
+        System.arraycopy(revisions, i, revisions, i+1, size-i);
+        numbers[i] = number;
+        revisions[i] = revision;
+        size++;
+    }
+
+    /*package*/ synchronized void remove(int number) {
+        int i = Arrays.binarySearch(numbers, 0, size, number);
+        if (i<0)    return;
+        System.arraycopy(numbers, i+1, numbers, i, size-i-1);
+        System.arraycopy(revisions, i+1, revisions, i, size-i-1);
+        size--;
+    }
+
+    /**
+     * Waits until the index is ready.
+     */
+    /*package*/ void waitForLoad() throws InterruptedException, ExecutionException {
+        loading.get();
+    }
+
+    public synchronized void save() throws IOException {
+        if (!loaded)    return;     // the loading saves everything once it's done
+        getConfigFile().write(this);
+    }
+
+    /**
+     * Saves the index a little later, so that the builds that complete close together are written at once.
+     */
+    private synchronized void scheduleSave() {
+        if (saveScheduled)  return;
+        saveScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                synchronized (UpstreamBuildIndex.this) {
+                    saveScheduled = false;
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save "+getConfigFile(), e);
+                }
+            }
+        }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(job.getRootDir(), "svnmerge-builds.xml"));
+    }
+
+    /**
+     * Gets the revision of the upstream that the given build built.
+     *
+     * @return -1
+     *      if not known.
+     */
+    private static long getRevision(Run<?,?> r) {
+        Job<?,?> j = r.getParent();
+        if (!(j instanceof AbstractProject))    return -1;
+        SCM scm = ((AbstractProject<?,?>) j).getScm();
+        SVNRevisionState state = r.getAction(SVNRevisionState.class);
+        if (!(scm instanceof SubversionSCM) || state==null)   return -1;
+
+        ModuleLocation location = Utility.getExpandedLocation(((SubversionSCM) scm).getLocations()[0], j);
+        return state.getRevision(location.getURL());
+    }
+
+    /**
+     * Gets the index of the given upstream project.
+     *
+     * <p>
+     * The first time, this starts looking at all the existing builds in the background,
+     * so that the page being rendered doesn't wait for it.
+     */
+    public static UpstreamBuildIndex of(Job<?,?> job) {
+        final UpstreamBuildIndex idx;
+        synchronized (INDICES) {
+            UpstreamBuildIndex i = INDICES.get(job.getFullName());
+            // a job that's reloaded from the disk is a different object
+            if (i!=null && i.job==job)
+                return i;
+            idx = new UpstreamBuildIndex(job);
+            idx.loading = new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    idx.load();
+                }
+            }, null);
+            INDICES.put(job.getFullName(), idx);
+        }
+        Timer.get().submit(idx.loading);
+        return idx;
+    }
+
+    /**
+     * Gets the index of the given job if it's already in memory, without loading it.
+     */
+    private static UpstreamBuildIndex peek(Job<?,?> job) {
+        synchronized (INDICES) {
+            UpstreamBuildIndex i = INDICES.get(job.getFullName());
+            return i!=null && i.job==job ? i : null;
+        }
+    }
+
+    /**
+     * Reads the index from the disk, or builds it from the existing builds.
+     * Builds that completed in the mean time are already in.
+     */
+    private void load() {
+        UpstreamBuildIndex existing = new UpstreamBuildIndex(job);
+        XmlFile f = getConfigFile();
+        try {
+            if (f.exists()) {
+                f.unmarshal(existing);
+                // builds that completed after the last save, such as right before a restart
+                int last = existing.size>0 ? existing.numbers[existing.size-1] : 0;
+                for (Run<?,?> r=job.getLastBuild(); r!=null && r.getNumber()>last; r=r.getPreviousBuild()) {
+                    long rev = r.isBuilding() ? -1 : getRevision(r);
+                    if (rev>=0)
+                        existing.add(r.getNumber(), rev);
+                }
+            } else {
+                for (Run<?,?> r=job.getFirstBuild(); r!=null; r=r.getNextBuild()) {
+                    long rev = getRevision(r);
+                    if (rev>=0)
+                        existing.add(r.getNumber(), rev);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+        }
+
+        synchronized (this) {
+            for (int i=0; i<existing.size; i++) {
+                if (Arrays.binarySearch(numbers, 0, size, existing.numbers[i])<0)
+                    add(existing.numbers[i], existing.revisions[i]);
+            }
+            loaded = true;
+            try {
+                save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save "+f, e);
+            }
+        }
+    }
+
+    /**
+     * @param children
+     *      Also forget the jobs inside, if the item is a folder.
+     */
+    private static void forget(String fullName, boolean children) {
+        synchronized (INDICES) {
+            INDICES.remove(fullName);
+            if (!children)  return;
+
+            String prefix = fullName+'/';
+            for (Iterator<String> itr = INDICES.keySet().iterator(); itr.hasNext(); ) {
+                if (itr.next().startsWith(prefix))
+                    itr.remove();
+            }
+        }
+    }
+
+    private static boolean isUpstream(Job<?,?> j) {
+        return j instanceof AbstractProject && ((AbstractProject<?,?>) j).getProperty(IntegratableProject.class)!=null;
+    }
+
+    /**
+     * Full name of the job to its index. The index refers to the job, so this can't be a weak map.
+     * Instead, the jobs that are deleted or moved are forgotten, like {@link BranchIndex} does.
+     */
+    private static final Map<String,UpstreamBuildIndex> INDICES = new HashMap<String,UpstreamBuildIndex>();
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName(), true);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName, false);
+        }
+    }
+
+    /**
+     * Adds the builds of the upstream projects as they complete.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onCompleted(Run<?,?> r, TaskListener listener) {
+            if (!isUpstream(r.getParent()))     return;
+            long rev = getRevision(r);
+            if (rev<0)  return;
+            UpstreamBuildIndex idx = of(r.getParent());
+            idx.add(r.getNumber(), rev);
+            idx.scheduleSave();
+        }
+
+        /**
+         * An index that nobody has asked for isn't loaded just to forget a build.
+         * Like the fingerprints, such an index may keep mentioning the deleted build.
+         */
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            if (!isUpstream(r.getParent()))     return;
+            UpstreamBuildIndex idx = peek(r.getParent());
+            if (idx==null)  return;
+            idx.remove(r.getNumber());
+            idx.scheduleSave();
+        }
+    }
+
+    /**
+     * Seconds to wait before writing, so that the builds that complete close together are written at once.
+     */
+    private static final long SAVE_DELAY = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(UpstreamBuildIndex.class.getName());
+}
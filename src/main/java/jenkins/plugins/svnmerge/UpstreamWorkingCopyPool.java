@@ -0,0 +1,210 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.Util;
+import hudson.util.IOException2;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.wc.ISVNStatusHandler;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNInfo;
+import org.tmatesoft.svn.core.wc.SVNStatus;
+import org.tmatesoft.svn.core.wc.SVNStatusType;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.tmatesoft.svn.core.SVNDepth.*;
+import static org.tmatesoft.svn.core.wc.SVNRevision.*;
+
+/**
+ * Working copies of the upstreams, kept on a node so that the integrations of
+ * different branches into the same upstream can reuse one checkout, instead of
+ * switching the workspace of each branch to the upstream and back.
+ *
+ * <p>
+ * This lives in the JVM of the node that has the working copies. Working copies are
+ * keyed by the upstream URL and the credentials, and only one integration can use
+ * a working copy at a time.
+ *
+ * <p>
+ * While a working copy is leased, a marker file sits next to it. If the marker is
+ * still there when the working copy is leased the next time, the previous integration
+ * didn't finish cleanly (or the node crashed), so the working copy is cleaned up
+ * before it's used.
+ */
+class UpstreamWorkingCopyPool {
+    private final File root;
+
+    /**
+     * @param root
+     *      Directory that holds the working copies, such as <tt>$NODE_ROOT/svnmerge/upstream</tt>
+     */
+    UpstreamWorkingCopyPool(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Computes the key of the working copy for the given upstream.
+     */
+    static String getKey(String upstreamURL, String credentialsId) {
+        return Util.getDigestOf(upstreamURL+"|"+credentialsId);
+    }
+
+    /**
+     * Directory of the working copy for the given key.
+     */
+    File getDir(String key) {
+        return new File(root,key);
+    }
+
+    /**
+     * Leases the working copy for the given upstream, updated to the latest revision.
+     * Blocks while another integration is using it.
+     *
+     * <p>
+     * The caller must {@linkplain Lease#release(boolean) release} the lease.
+     *
+     * @throws SVNCancelException
+     *      if the canceller of the client manager stopped the update or the checkout.
+     */
+    Lease lease(String key, SVNURL up, SVNClientManager cm, PrintStream logger) throws IOException, InterruptedException, SVNCancelException {
+        File dir = getDir(key);
+        ReentrantLock lock = lockOf(dir);
+        lock.lockInterruptibly();
+        try {
+            File marker = new File(root,key+".inuse");
+            try {
+                if (!reuse(dir, marker, up, cm, logger)) {
+                    logger.println("Checking out the upstream ("+up+") to "+dir);
+                    Util.deleteRecursive(dir);
+                    cm.getUpdateClient().doCheckout(up, dir, HEAD, HEAD, INFINITY, false);
+                }
+            } catch (SVNCancelException e) {
+                throw e;
+            } catch (SVNException e) {
+                throw new IOException2("Failed to prepare the working copy of "+up, e);
+            }
+            Util.touch(marker);
+            return new Lease(dir, marker, lock);
+        } catch (IOException e) {
+            lock.unlock();
+            throw e;
+        } catch (SVNCancelException e) {
+            lock.unlock();
+            throw e;
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Brings the existing working copy up to date, if there's one.
+     *
+     * @return
+     *      false if the working copy needs to be checked out from scratch.
+     */
+    private boolean reuse(File dir, File marker, SVNURL up, SVNClientManager cm, PrintStream logger) throws SVNCancelException {
+        if (!new File(dir,".svn").exists())
+            return false;
+        try {
+            SVNWCClient wc = cm.getWCClient();
+            SVNInfo info = wc.doInfo(dir, null);
+            if (!up.equals(info.getURL()))
+                return false;
+
+            if (marker.exists()) {
+                logger.println("The last integration didn't finish cleanly. Cleaning up "+dir);
+                wc.doCleanup(dir);
+                wc.doRevert(new File[]{dir}, INFINITY, null);
+                deleteUnversioned(dir, cm);
+            }
+
+            logger.println("Updating the working copy of the upstream ("+up+") to the latest revision");
+            cm.getUpdateClient().doUpdate(dir, HEAD, INFINITY, false, false);
+            return true;
+        } catch (SVNCancelException e) {
+            throw e;    // not a reason to check out from scratch
+        } catch (SVNException e) {
+            logger.println("Unable to reuse "+dir+": "+e.getLocalizedMessage());
+            return false;
+        } catch (IOException e) {
+            logger.println("Unable to reuse "+dir+": "+e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reverting doesn't remove files that were added by the merge, or left behind by conflicts.
+     */
+    private void deleteUnversioned(File dir, SVNClientManager cm) throws SVNException, IOException {
+        final List<File> garbage = new ArrayList<File>();
+        cm.getStatusClient().doStatus(dir, null, INFINITY, false, false, true, false, new ISVNStatusHandler() {
+            public void handleStatus(SVNStatus status) throws SVNException {
+                SVNStatusType c = status.getContentsStatus();
+                if (c==SVNStatusType.STATUS_UNVERSIONED || c==SVNStatusType.STATUS_IGNORED)
+                    garbage.add(status.getFile());
+            }
+        }, null);
+        for (File f : garbage)
+            Util.deleteRecursive(f);
+    }
+
+    /**
+     * A working copy that's exclusively used by one integration.
+     */
+    static final class Lease {
+        private final File dir;
+        private final File marker;
+        private final ReentrantLock lock;
+
+        private Lease(File dir, File marker, ReentrantLock lock) {
+            this.dir = dir;
+            this.marker = marker;
+            this.lock = lock;
+        }
+
+        File getDir() {
+            return dir;
+        }
+
+        /**
+         * Returns the working copy to the pool.
+         *
+         * @param clean
+         *      True if the working copy has no local changes. Otherwise it'll be
+         *      cleaned up when it's leased the next time.
+         */
+        void release(boolean clean) {
+            try {
+                if (clean)
+                    marker.delete();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static ReentrantLock lockOf(File dir) {
+        synchronized (LOCKS) {
+            String key = dir.getAbsolutePath();
+            ReentrantLock l = LOCKS.get(key);
+            if (l==null)
+                LOCKS.put(key, l=new ReentrantLock(true));
+            return l;
+        }
+    }
+
+    /**
+     * One lock per working copy. The number of upstreams is small, so these are never removed.
+     */
+    private static final Map<String,ReentrantLock> LOCKS = new HashMap<String,ReentrantLock>();
+}
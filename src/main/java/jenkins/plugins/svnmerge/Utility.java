@@ -1,14 +1,25 @@
 package jenkins.plugins.svnmerge;
 
 import hudson.EnvVars;
+import hudson.Extension;
+import hudson.XmlFile;
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
 import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SaveableListener;
 import hudson.scm.SubversionSCM.ModuleLocation;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,46 +50,78 @@ class Utility {
 	
     /**
      * Expands the system variables, the node environment variables and the project parameters
+     *
+     * <p>
+     * Getting the environment variables of the computer is a round trip to the agent, and this is called
+     * while pages are rendered, so the result is cached until the configuration of the job, the node, or the system changes.
      */
 	static ModuleLocation getExpandedLocation(ModuleLocation ml, Job<?,?> project) {
-		 ModuleLocation location= ml.getExpandedLocation(project);
-		// expand system variables
 		Computer c = Computer.currentComputer();
+		String key = (project!=null ? project.getFullName() : "") + '\n' + (c!=null ? c.getName() : "")
+				+ '\n' + ml.remote + '\n' + ml.getLocalDir() + '\n' + ml.credentialsId
+				+ '\n' + ml.getDepthOption() + '\n' + ml.isIgnoreExternalsOption();
+		long version = LOCATION_CACHE_VERSION.get();
+		ModuleLocation location;
+		synchronized (LOCATION_CACHE) {
+			location = LOCATION_CACHE.get(key);
+		}
+		if (location != null) {
+			LOCATION_CACHE_HITS.incrementAndGet();
+			return location;
+		}
+		LOCATION_CACHE_MISSES.incrementAndGet();
+
+		try {
+			location = expandLocation(ml, project, c);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to get computer environment", e);
+			// try again next time
+			return expandLocation(ml, project);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "Failed to get computer environment", e);
+			return expandLocation(ml, project);
+		}
+		// don't cache what we computed from the configuration that has changed in the mean time
+		synchronized (LOCATION_CACHE) {
+			if (version == LOCATION_CACHE_VERSION.get())
+				LOCATION_CACHE.put(key, location);
+		}
+		return location;
+	}
+
+	private static ModuleLocation expandLocation(ModuleLocation ml, Job<?,?> project, Computer c) throws IOException, InterruptedException {
+		ModuleLocation location = ml.getExpandedLocation(project);
+		// expand system variables
 		if (c != null) {
-			try {
-				// JVM vars
-				EnvVars cEnv = c.getEnvironment();
-				location = location.getExpandedLocation(cEnv);
-				// global node vars
-				for (NodeProperty<?> globalNodeProp : Jenkins.getInstance().getGlobalNodeProperties()) {
-					if (globalNodeProp instanceof EnvironmentVariablesNodeProperty) {
-						EnvVars nodeEnvVars = ((EnvironmentVariablesNodeProperty) globalNodeProp)
-								.getEnvVars();
-						location = location
-								.getExpandedLocation(nodeEnvVars);
-
-					}
-				}
-				
-				// node vars
-				for (NodeProperty<?> nodeProp : c.getNode().getNodeProperties()) {
-					if (nodeProp instanceof EnvironmentVariablesNodeProperty) {
-						EnvVars nodeEnvVars = ((EnvironmentVariablesNodeProperty) nodeProp)
-								.getEnvVars();
-						location = location
-								.getExpandedLocation(nodeEnvVars);
-
-					}
+			// JVM vars
+			EnvVars cEnv = c.getEnvironment();
+			location = location.getExpandedLocation(cEnv);
+			// global node vars
+			for (NodeProperty<?> globalNodeProp : Jenkins.getInstance().getGlobalNodeProperties()) {
+				if (globalNodeProp instanceof EnvironmentVariablesNodeProperty) {
+					EnvVars nodeEnvVars = ((EnvironmentVariablesNodeProperty) globalNodeProp)
+							.getEnvVars();
+					location = location
+							.getExpandedLocation(nodeEnvVars);
+
 				}
-			} catch (IOException e) {
-				LOGGER.log(Level.WARNING, "Failed to get computer environment",
-						e);
-			} catch (InterruptedException e) {
-				LOGGER.log(Level.WARNING, "Failed to get computer environment",
-						e);
+			}
+			
+			// node vars
+			for (NodeProperty<?> nodeProp : c.getNode().getNodeProperties()) {
+				if (nodeProp instanceof EnvironmentVariablesNodeProperty) {
+					EnvVars nodeEnvVars = ((EnvironmentVariablesNodeProperty) nodeProp)
+							.getEnvVars();
+					location = location
+							.getExpandedLocation(nodeEnvVars);
 
+				}
 			}
 		}
+		return expandLocation(location, project);
+	}
+
+	private static ModuleLocation expandLocation(ModuleLocation location, Job<?,?> project) {
 		// expand project variables
 		if(project!=null){
 			location = location.getExpandedLocation(project);
@@ -86,5 +129,93 @@ class Utility {
 		return location;
 	}
 
+    /**
+     * Forgets all the expanded locations.
+     */
+    static void invalidateExpandedLocations() {
+        synchronized (LOCATION_CACHE) {
+            LOCATION_CACHE_VERSION.incrementAndGet();
+            LOCATION_CACHE.clear();
+        }
+    }
+
+    /**
+     * Forgets the expanded locations of the given job, or those looked up on the given computer.
+     *
+     * @param job
+     *      Full name of the job, or null for any job.
+     * @param computer
+     *      Name of the computer, or null for any computer.
+     */
+    static void invalidateExpandedLocations(String job, String computer) {
+        synchronized (LOCATION_CACHE) {
+            LOCATION_CACHE_VERSION.incrementAndGet();
+            for (Iterator<String> itr = LOCATION_CACHE.keySet().iterator(); itr.hasNext(); ) {
+                // the key starts with the job and the computer. see getExpandedLocation
+                String[] key = itr.next().split("\n", 3);
+                if ((job==null || key[0].equals(job)) && (computer==null || key[1].equals(computer)))
+                    itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of times {@link #getExpandedLocation(ModuleLocation, Job)} was answered from the cache, and not.
+     */
+    static long getExpandedLocationCacheHits() {
+        return LOCATION_CACHE_HITS.get();
+    }
+
+    static long getExpandedLocationCacheMisses() {
+        return LOCATION_CACHE_MISSES.get();
+    }
+
+    private static final int LOCATION_CACHE_SIZE = Integer.getInteger(Utility.class.getName()+".locationCacheSize", 1024);
+
+    /**
+     * From the job, the computer, and the location to the expanded location. Least recently used entries are dropped first.
+     */
+    private static final Map<String,ModuleLocation> LOCATION_CACHE = new LinkedHashMap<String,ModuleLocation>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,ModuleLocation> eldest) {
+            return size()>LOCATION_CACHE_SIZE;
+        }
+    };
+    private static final AtomicLong LOCATION_CACHE_VERSION = new AtomicLong();
+    private static final AtomicLong LOCATION_CACHE_HITS = new AtomicLong();
+    private static final AtomicLong LOCATION_CACHE_MISSES = new AtomicLong();
+
+    /**
+     * The expanded locations depend on the configuration of the jobs, the nodes, and the system.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job)
+                invalidateExpandedLocations(((Job<?,?>) o).getFullName(), null);
+            else if (o instanceof Jenkins)     // which is also a node
+                invalidateExpandedLocations();
+            else if (o instanceof Node)
+                invalidateExpandedLocations(null, ((Node) o).getNodeName());
+        }
+    }
+
+    /**
+     * The environment variables of a computer may be different after it reconnects.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            invalidateExpandedLocations();
+        }
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidateExpandedLocations(null, c.getName());
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(Utility.class.getName());
 }
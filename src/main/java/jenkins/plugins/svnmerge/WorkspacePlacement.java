@@ -0,0 +1,130 @@
+package jenkins.plugins.svnmerge;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides where the rebases and integrations of a feature branch should run,
+ * based on which nodes have its workspace.
+ *
+ * <p>
+ * The workspace that was used most recently is the one that needs the least updating,
+ * so the nodes are preferred in the order of the last build that used the workspace on them.
+ * Running on the node that has the workspace also means the merge doesn't have to
+ * go through the remoting channel to another node.
+ */
+final class WorkspacePlacement {
+    private WorkspacePlacement() {}
+
+    /**
+     * Finds the builds that left a workspace behind, one for each node, the newest first.
+     */
+    static List<AbstractBuild<?,?>> getBuildsWithWorkspace(AbstractProject<?,?> p) {
+        Map<String,AbstractBuild<?,?>> r = new LinkedHashMap<String,AbstractBuild<?,?>>();
+        int n=0;
+        // older builds are unlikely to tell us about a workspace that newer ones don't, and loading them isn't free
+        for (AbstractBuild<?,?> b=p.getLastBuild(); b!=null && n<MAX_BUILDS; b=b.getPreviousBuild(), n++) {
+            String node = b.getBuiltOnStr();
+            if (node==null || r.containsKey(node))  continue;
+            if (b.getBuiltOn()==null || b.getWorkspace()==null)    continue;  // the node is gone
+            r.put(node, b);
+        }
+        return new ArrayList<AbstractBuild<?,?>>(r.values());
+    }
+
+    /**
+     * Names of the nodes that have the workspace of the given project, in the order of preference.
+     * The controller is "".
+     */
+    static List<String> getCandidates(AbstractProject<?,?> p) {
+        List<String> r = new ArrayList<String>();
+        for (AbstractBuild<?,?> b : getBuildsWithWorkspace(p))
+            r.add(b.getBuiltOnStr());
+        return r;
+    }
+
+    static Node getNode(String name) {
+        Jenkins j = Jenkins.getInstance();
+        return name.length()==0 ? j : j.getNode(name);
+    }
+
+    /**
+     * Picks the build whose workspace the merge should use.
+     *
+     * <p>
+     * If we are running on a node that has the workspace, that's the one. Otherwise the most recent
+     * workspace that still exists.
+     *
+     * @return null
+     *      if there's no workspace at all.
+     */
+    static AbstractBuild<?,?> getBuildWithWorkspace(AbstractProject<?,?> p) {
+        List<AbstractBuild<?,?>> builds = getBuildsWithWorkspace(p);
+        String here = getCurrentNodeName();
+        if (here!=null) {
+            for (AbstractBuild<?,?> b : builds) {
+                if (b.getBuiltOnStr().equals(here) && exists(b.getWorkspace()))
+                    return b;
+            }
+        }
+        for (AbstractBuild<?,?> b : builds) {
+            if (exists(b.getWorkspace()))
+                return b;
+        }
+        return p.getSomeBuildWithWorkspace();
+    }
+
+    private static boolean exists(FilePath ws) {
+        try {
+            return ws!=null && ws.exists();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to check "+ws, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Name of the node the current executor belongs to, or null if this isn't an executor thread.
+     */
+    private static String getCurrentNodeName() {
+        Executor e = Executor.currentExecutor();
+        if (e==null)    return null;
+        Computer c = e.getOwner();
+        return c.getNode()!=null ? c.getName() : null;
+    }
+
+    /**
+     * Records where a merge task ended up running, compared to where we wanted it.
+     *
+     * @param candidates
+     *      What {@link #getCandidates(AbstractProject)} said when the task was queued.
+     * @see FeatureBranchState#getPlacementStats()
+     */
+    static void onStarted(AbstractProject<?,?> project, List<String> candidates) {
+        String here = getCurrentNodeName();
+        FeatureBranchState.of(project).onPlaced(here!=null ? candidates.indexOf(here) : -1);
+    }
+
+    /**
+     * How many builds are looked at to find the workspaces.
+     */
+    private static final int MAX_BUILDS = 20;
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspacePlacement.class.getName());
+}
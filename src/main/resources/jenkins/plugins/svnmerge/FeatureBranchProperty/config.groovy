@@ -13,6 +13,24 @@ f.optionalBlock(name:"svnmerge", title:_("This project builds a Subversion featu
                     }
                 }
             }
+            f.entry(title:_("Stop merging at the first conflict"), field:"failFastMerge") {
+                f.checkbox()
+            }
+            f.entry(title:_("List every file in the merge logs"), field:"verboseMergeLog") {
+                f.checkbox(default:true)
+            }
+            f.entry(title:_("Integration engine"), field:"integrationEngine") {
+                f.select()
+            }
+            f.entry(title:_("Retries of out-of-date integration commits"), field:"commitRetries") {
+                f.number(clazz:"positive-number", min:0, step:1, default:3)
+            }
+            f.entry(title:_("Seconds to wait before retrying"), field:"commitRetryInterval") {
+                f.number(clazz:"positive-number", min:0, step:1, default:5)
+            }
+            f.entry(title:_("Minutes each step of a merge may take"), field:"phaseTimeout") {
+                f.number(clazz:"positive-number", min:0, step:1, default:0)
+            }
         }
     }
 }
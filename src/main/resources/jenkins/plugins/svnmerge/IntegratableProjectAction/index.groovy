@@ -28,6 +28,23 @@ l.layout(norefresh:"true",title:_("title",my.project.displayName)) {
 			p(_("Detected subproject name: "+repoLayout.subProjectName))
 		}
 
+        def queue = my.integrationQueue
+        h2(_("Integration Queue"))
+        p(_("queueStats", queue.depth, queue.averageWaitTime, queue.throughput, queue.completed))
+        def placement = my.placementStats
+        p(_("placementStats", placement[0], placement[1], placement[2]))
+        p(_("coalescedStats", my.coalescedCount))
+        def locations = my.locationCacheStats
+        p(_("locationCacheStats", locations[0], locations[1]))
+        if (queue.current!=null) {
+            ul(style:"list-style:none") {
+                li(_("Integrating")+": "+queue.current)
+                queue.waiting.each { w ->
+                    li(_("Waiting")+": "+w)
+                }
+            }
+        }
+
         def branches = my.branches;
         if (branches.size()>0) {
             h2(_("Existing Feature Branches"))
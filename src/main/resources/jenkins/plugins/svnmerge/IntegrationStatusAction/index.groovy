@@ -43,5 +43,12 @@ l.layout(norefresh:true, title:_("title",my.project.displayName)) {
 
             p(_("Subversion Revision")+":"+ia.integratedRevision)
         }
+
+        int pending = my.branchProperty.pendingUpstreamRevisions
+        if (pending>0) {
+            p(_("pending",pending))
+        } else if (pending==0) {
+            p(_("This project has merged everything from the upstream."))
+        }
     }
 }
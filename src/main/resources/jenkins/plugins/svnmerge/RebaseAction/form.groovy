@@ -29,7 +29,7 @@ l.layout(norefresh:true, title:_("Rebase changes from upstream")) {
                     up.permalinks.each { p ->
                         def b = p.resolve(up)
                         if (b!=null)
-                            option(value:p.id, "${p.displayName} (${b.displayName})")
+                            option(value:p.id, "${p.displayName} (${b.displayName})"+(my.isMerged(p) ? _(" - already merged") : ""))
                     }
                 }
             }
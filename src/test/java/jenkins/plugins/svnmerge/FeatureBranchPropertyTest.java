@@ -23,6 +23,9 @@ import hudson.slaves.NodeProperty;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 
 import org.htmlunit.html.HtmlPage;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -44,6 +47,29 @@ public class FeatureBranchPropertyTest extends HudsonTestCase {
         assertNotNull(ujp);
         assertEquals("xyz",ujp.getUpstream());
     }
+
+    public void testConfigRoundtripCommitRetries() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FeatureBranchProperty fbp = new FeatureBranchProperty("xyz");
+        assertEquals(3,fbp.getCommitRetries());
+        fbp.setCommitRetries(7);
+        fbp.setCommitRetryInterval(2);
+        p.addProperty(fbp);
+        HtmlPage page = new WebClient().getPage(p, "configure");
+        submit(page.getFormByName("config"));
+        FeatureBranchProperty ujp = p.getProperty(FeatureBranchProperty.class);
+        assertEquals(7,ujp.getCommitRetries());
+        assertEquals(2,ujp.getCommitRetryInterval());
+    }
+
+    public void testIsOutOfDate() {
+        assertTrue(FeatureBranchProperty.isOutOfDate(new SVNException(SVNErrorMessage.create(SVNErrorCode.FS_TXN_OUT_OF_DATE, "txn out of date"))));
+        assertTrue(FeatureBranchProperty.isOutOfDate(new SVNException(SVNErrorMessage.create(SVNErrorCode.FS_CONFLICT, "File '/trunk/a' is out of date"))));
+        SVNErrorMessage wrapped = SVNErrorMessage.create(SVNErrorCode.RA_DAV_REQUEST_FAILED, "Commit failed (details follow):");
+        wrapped.setChildErrorMessage(SVNErrorMessage.create(SVNErrorCode.WC_NOT_UP_TO_DATE, "Directory '/trunk' is out of date"));
+        assertTrue(FeatureBranchProperty.isOutOfDate(new SVNException(wrapped)));
+        assertFalse(FeatureBranchProperty.isOutOfDate(new SVNException(SVNErrorMessage.create(SVNErrorCode.RA_NOT_AUTHORIZED, "access denied"))));
+    }
     
 	@Bug(24735)
 	public void testUpStreamURLwithParams()
@@ -61,6 +87,60 @@ public class FeatureBranchPropertyTest extends HudsonTestCase {
 		p2.addProperty(jobProp);
 		assertEquals( "https://root/a/b/trunk",jobProp.getUpstreamURL().toDecodedString());
 	}
+
+    public void testExpandedLocationIsCached() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        SubversionSCM scm = new SubversionSCM("https://example.com/${REPO}/trunk");
+        p.setScm(scm);
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REPO", "a")));
+
+        assertEquals("https://example.com/a/trunk", Utility.getExpandedLocation(scm.getLocations()[0], p).getURL());
+        long hits = Utility.getExpandedLocationCacheHits();
+        assertEquals("https://example.com/a/trunk", Utility.getExpandedLocation(scm.getLocations()[0], p).getURL());
+        assertEquals(hits+1, Utility.getExpandedLocationCacheHits());
+
+        // reconfiguring the job invalidates its entries, and only those
+        FreeStyleProject other = createFreeStyleProject();
+        Utility.getExpandedLocation(scm.getLocations()[0], other);
+        p.removeProperty(ParametersDefinitionProperty.class);
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("REPO", "b")));
+        hits = Utility.getExpandedLocationCacheHits();
+        assertEquals("https://example.com/b/trunk", Utility.getExpandedLocation(scm.getLocations()[0], p).getURL());
+        assertEquals(hits, Utility.getExpandedLocationCacheHits());
+        Utility.getExpandedLocation(scm.getLocations()[0], other);
+        assertEquals(hits+1, Utility.getExpandedLocationCacheHits());
+
+        // the upstream page shows how well the cache does
+        p.addProperty(new IntegratableProject());
+        assertTrue(p.getAction(IntegratableProjectAction.class).getLocationCacheStats()[0]>=hits+1);
+    }
+
+    public void testClientManagerPool() throws Exception {
+        SvnClientManagerPool.clear();
+        SvnClientManagerPool.Lease a = SvnClientManagerPool.lease("a", null);
+        SvnClientManagerPool.Lease b = SvnClientManagerPool.lease("a", null);
+        assertNotSame(a.get(), b.get());
+        a.release();
+        a.release();    // harmless
+        assertEquals(1, SvnClientManagerPool.getIdleCount());
+
+        // reused only with the same key
+        assertNotSame(a.get(), SvnClientManagerPool.lease("b", null).get());
+        Object auth = a.getCore().getAuthenticationManager();
+        SvnClientManagerPool.Lease c = SvnClientManagerPool.lease("a", null);
+        assertSame(a.get(), c.get());
+        // with the authentication provider of the new lease
+        assertNotSame(auth, c.getCore().getAuthenticationManager());
+        assertEquals(0, SvnClientManagerPool.getIdleCount());
+
+        // broken ones are thrown away
+        c.discard();
+        c.release();
+        b.release();
+        assertEquals(1, SvnClientManagerPool.getIdleCount());
+        SvnClientManagerPool.clear();
+        assertEquals(0, SvnClientManagerPool.getIdleCount());
+    }
     
     
 }
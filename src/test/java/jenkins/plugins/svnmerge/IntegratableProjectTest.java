@@ -1,9 +1,16 @@
 package jenkins.plugins.svnmerge;
 
 import org.htmlunit.html.HtmlPage;
+import hudson.Util;
+import hudson.model.Fingerprint;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.scm.SubversionSCM;
+import hudson.util.StreamTaskListener;
 import org.jvnet.hudson.test.HudsonTestCase;
 
+import java.util.Arrays;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -21,6 +28,88 @@ public class IntegratableProjectTest extends HudsonTestCase {
         assertNotNull(p.getProperty(IntegratableProject.class));
     }
 
+    /**
+     * Integrations into the same upstream should take turns, and show up in the feature branch page.
+     */
+    public void testIntegrationQueue() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        p.setScm(new SubversionSCM("https://svn.example.org/repo/trunk"));
+        p.addProperty(new IntegratableProject());
+        final IntegrationQueue q = p.getProperty(IntegratableProject.class).getIntegrationQueue();
+        assertSame(q, IntegrationQueue.of(p));
+
+        IntegrationQueue.Ticket first = q.enter("first", StreamTaskListener.fromStdout());
+        final IntegrationQueue.Ticket[] second = new IntegrationQueue.Ticket[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    second[0] = q.enter("second", StreamTaskListener.fromStdout());
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        t.start();
+        while (q.getDepth()<2)
+            Thread.sleep(10);
+        assertEquals("first", q.getCurrent());
+        assertEquals(Arrays.asList("second"), q.getWaiting());
+
+        HtmlPage page = new WebClient().getPage(p, "featureBranches");
+        assertTrue(page.asNormalizedText().contains("second"));
+
+        first.leave();
+        t.join();
+        assertEquals("second", q.getCurrent());
+        second[0].leave();
+        assertEquals(0, q.getDepth());
+        assertEquals(2, q.getCompleted());
+        assertEquals(2, q.getThroughput());
+    }
+
+    /**
+     * Feature branches are tracked as they are created, renamed, reconfigured, and deleted.
+     */
+    public void testBranchIndex() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        up.addProperty(new IntegratableProject());
+        IntegratableProjectAction a = up.getAction(IntegratableProjectAction.class);
+        assertTrue(a.getBranches().isEmpty());
+        assertTrue(BranchIndex.getIntegratableProjects().contains(up));
+
+        FreeStyleProject b = createFreeStyleProject("b");
+        b.addProperty(new FeatureBranchProperty("up"));
+        assertEquals(Arrays.asList(b), a.getBranches());
+
+        b.renameTo("b2");
+        assertEquals(Arrays.asList(b), a.getBranches());
+
+        b.removeProperty(FeatureBranchProperty.class);
+        assertTrue(a.getBranches().isEmpty());
+
+        b.addProperty(new FeatureBranchProperty("up"));
+        b.delete();
+        assertTrue(a.getBranches().isEmpty());
+    }
+
+    /**
+     * Builds are added to the fingerprints in the background.
+     */
+    public void testFingerprintRecorder() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("up");
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0));
+        String id = Util.getDigestOf("Integrated test#1");
+        Fingerprint f = jenkins.getFingerprintMap().getOrCreate(null, "test", id);
+
+        FingerprintRecorder r = FingerprintRecorder.get();
+        r.record(Arrays.asList(id), b);
+        assertEquals(b.getNumber(), r.getPendingBuildNumber(id, p.getFullName()));
+
+        r.flush();
+        assertEquals(-1, r.getPendingBuildNumber(id, p.getFullName()));
+        assertTrue(jenkins.getFingerprintMap().get(id).getRangeSet(p).includes(b.getNumber()));
+    }
+
     private void configRoundtrip(FreeStyleProject p) throws Exception {
         HtmlPage page = new WebClient().getPage(p, "configure");
         submit(page.getFormByName("config"));
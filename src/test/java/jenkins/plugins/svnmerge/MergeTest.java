@@ -3,34 +3,58 @@ package jenkins.plugins.svnmerge;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
 import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueDecisionHandler;
+import hudson.scm.NullSCM;
+import hudson.slaves.DumbSlave;
+import hudson.scm.SVNRevisionState;
+import hudson.scm.SubversionChangeLogSet;
 import hudson.scm.SubversionSCM;
+import hudson.scm.SubversionSCM.SvnInfo;
 import hudson.util.IOException2;
+import hudson.util.StreamTaskListener;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.jvnet.hudson.test.HudsonHomeLoader.CopyExisting;
 import org.jvnet.hudson.test.HudsonTestCase;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 import org.tmatesoft.svn.core.SVNCommitInfo;
 import static org.tmatesoft.svn.core.SVNDepth.INFINITY;
 import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
 import org.tmatesoft.svn.core.SVNProperties;
 import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.io.SVNRepository;
 import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.ISVNStatusHandler;
 import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNStatus;
 import static org.tmatesoft.svn.core.wc.SVNRevision.HEAD;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.URL;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.awt.*;
 
 import org.htmlunit.html.HtmlPage;
@@ -117,9 +141,210 @@ public class MergeTest extends HudsonTestCase {
         assertTrue(trunkHasE());
     }
 
+    /**
+     * The last integration is recorded, and survives the build being deleted.
+     */
+    public void testLastIntegrationIsRecorded() throws Exception {
+        commitAndUpdate("branches/b1/e");
+        p.addPublisher(new IntegrationPublisher());
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+
+        FeatureBranchState state = upp.getState();
+        assertEquals(Integer.valueOf(b.getNumber()), state.getLastIntegratedBuild());
+        assertTrue(state.getLastIntegrationCommit()>0);
+        assertSame(b, IntegrationStatusAction.getLastIntegrateAction(p).build);
+
+        // if the build is gone, we fall back to looking at the other builds
+        b.delete();
+        assertNull(IntegrationStatusAction.getLastIntegrateAction(p));
+        assertEquals(Integer.valueOf(0), state.getLastIntegratedBuild());
+    }
+
+    /**
+     * Once the branch is integrated, there's nothing more to integrate until someone commits to it.
+     */
+    public void testNoOpIntegrationIsSkipped() throws Exception {
+        commitAndUpdate("branches/b1/e");
+        p.addPublisher(new IntegrationPublisher());
+        FreeStyleBuild b1 = assertBuildStatusSuccess(build());
+        assertTrue(b1.getAction(IntegrateAction.class).isIntegrated());
+
+        // the integration leaves a rebase commit in the branch, which doesn't count
+        assertFalse(upp.isIntegrationNeeded(null, -1));
+        FreeStyleBuild b2 = assertBuildStatusSuccess(build());
+        assertLogContains("Examined 1 commit(s) of the branch", b2);
+        assertLogContains("No changes to be integrated", b2);
+        assertEquals(Long.valueOf(0), b2.getAction(IntegrateAction.class).getIntegratedRevision());
+        // nor does integrate() merge what's already integrated
+        assertEquals(0, upp.integrate(TaskListener.NULL, null, b1.getAction(IntegrateAction.class).getIntegrationSource(), "again").mergeCommit);
+
+        commitAndUpdate("branches/b1/f");
+        assertTrue(upp.isIntegrationNeeded(null, -1));
+    }
+
+    /**
+     * The history of the branch is read from the log cache after the first time.
+     */
+    public void testLogCache() throws Exception {
+        commitAndUpdate("branches/b1/e");
+        p.addPublisher(new IntegrationPublisher());
+        assertBuildStatusSuccess(build());
+
+        long hits = LogCache.getHitCount();
+        assertFalse(upp.isIntegrationNeeded(null, -1));
+        assertEquals(hits+1, LogCache.getHitCount());
+        assertTrue(new File(jenkins.getRootDir(), "svnmerge/log-cache").list().length>0);
+
+        // new commits are appended, and seen
+        commitAndUpdate("branches/b1/f");
+        assertTrue(upp.isIntegrationNeeded(null, -1));
+        assertEquals(hits+2, LogCache.getHitCount());
+    }
+
+    /**
+     * Rebase requests made while one is in the queue are merged into it.
+     */
+    public void testRequestsAreCoalesced() throws Exception {
+        assertBuildStatusSuccess(build());
+        commitAndUpdate("trunk/x");
+        long coalesced = FeatureBranchState.of(p).getCoalescedCount();
+
+        jenkins.setNumExecutors(0);     // keep the task in the queue
+        RebaseAction ra = p.getAction(RebaseAction.class);
+        Future<RebaseAction.WorkerThread> f1 = ra.performAsync(new RebaseSetting(-1));
+        Future<RebaseAction.WorkerThread> f2 = ra.performAsync(new RebaseSetting(-1));
+        assertSame(f1, f2);
+        assertEquals(1, jenkins.getQueue().getItems().length);
+        assertEquals(coalesced+1, FeatureBranchState.of(p).getCoalescedCount());
+        assertEquals(coalesced+1, trunk.getAction(IntegratableProjectAction.class).getCoalescedCount());
+
+        // a specific revision doesn't take the place of the latest one
+        long specific = SVNRepositoryFactory.create(upp.getUpstreamURL()).getLatestRevision();
+        assertSame(f1, ra.performAsync(new RebaseSetting(specific)));
+        assertEquals(-1, ((RebaseAction.TaskImpl) jenkins.getQueue().getItems()[0].task).getThread().param.revision);
+
+        jenkins.setNumExecutors(2);
+        String log = IOUtils.toString(f1.get().readAll());
+        assertTrue(log, log.contains("2 more request(s) were merged"));
+        assertTrue(log, log.contains("committed revision"));
+    }
+
+    /**
+     * A request that the queue refuses doesn't leave the caller waiting forever.
+     */
+    public void testRefusedRequestCompletes() throws Exception {
+        assertBuildStatusSuccess(build());
+        commitAndUpdate("trunk/x");
+
+        Future<RebaseAction.WorkerThread> f = p.getAction(RebaseAction.class).performAsync(new RebaseSetting(-1));
+        try {
+            f.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("refused"));
+        }
+        assertEquals(0, jenkins.getQueue().getItems().length);
+    }
+
+    @TestExtension("testRefusedRequestCompletes")
+    public static class RefuseMergeTasks extends QueueDecisionHandler {
+        @Override
+        public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+            return !(p instanceof AbstractSvnmergeTaskAction.TaskImpl);
+        }
+    }
+
+    /**
+     * Merge tasks prefer the node with the most recent workspace.
+     */
+    public void testWorkspacePlacement() throws Exception {
+        assertBuildStatusSuccess(build());
+        DumbSlave s = createSlave();
+        p.setAssignedNode(s);
+        assertBuildStatusSuccess(build());
+
+        assertEquals(Arrays.asList(s.getNodeName(), ""), WorkspacePlacement.getCandidates(p));
+        assertEquals(s.getNodeName(), WorkspacePlacement.getBuildWithWorkspace(p).getBuiltOnStr());
+    }
+
+    /**
+     * What to integrate is captured when the build starts, and doesn't follow later reconfiguration.
+     */
+    public void testSvnInfoIsCaptured() throws Exception {
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+        IntegrateAction ia = b.getAction(IntegrateAction.class);
+        SvnInfo info = ia.getSvnInfo();
+        assertNotNull(info);
+        long rev = b.getAction(SVNRevisionState.class).getRevision(info.url);
+        assertEquals(rev, info.revision);
+
+        p.setScm(new NullSCM());
+        assertSame(info, ia.getSvnInfo());
+
+        // nothing is added to the record of a build that isn't integrated
+        assertFalse(FileUtils.readFileToString(new File(b.getRootDir(),"build.xml")).contains("SvnInfo"));
+        p.setScm(new SubversionSCM("file://"+new URL(repo,"branches/b1").getPath(),"b1"));
+        SvnInfo loaded = new IntegrateAction(b).getSvnInfo();
+        assertNotNull(loaded);
+        assertEquals(rev, loaded.revision);
+    }
+
+    /**
+     * Builds recorded with an integration action that was never used get rewritten without it.
+     */
+    public void testUnusedIntegrateActionIsSlimmed() throws Exception {
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+        File xml = new File(b.getRootDir(),"build.xml");
+        // what the builds used to record
+        b.addAction(new IntegrateAction(b));
+        b.save();
+        assertTrue(FileUtils.readFileToString(xml).contains(IntegrateAction.class.getName()));
+
+        b.reload();
+        IntegrateAction.slimBuildRecords(p);
+        assertFalse(FileUtils.readFileToString(xml).contains(IntegrateAction.class.getName()));
+        assertNotNull(b.getAction(IntegrateAction.class));
+    }
+
+    /**
+     * Only the builds that got integrated carry the integration action in their records.
+     */
+    public void testIntegrateActionIsOnlyPersistedWhenIntegrated() throws Exception {
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+        assertNotNull(b.getAction(IntegrateAction.class));
+        assertFalse(FileUtils.readFileToString(new File(b.getRootDir(),"build.xml")).contains(IntegrateAction.class.getName()));
+
+        commitAndUpdate("branches/b1/e");
+        p.addPublisher(new IntegrationPublisher());
+        b = assertBuildStatusSuccess(build());
+        assertTrue(b.getAction(IntegrateAction.class).isIntegrated());
+        assertTrue(FileUtils.readFileToString(new File(b.getRootDir(),"build.xml")).contains(IntegrateAction.class.getName()));
+    }
+
+    /**
+     * The upstream build that picked up the integration can be found from the revisions it built.
+     */
+    public void testUpstreamBuildIndex() throws Exception {
+        commitAndUpdate("branches/b1/e");
+        p.addPublisher(new IntegrationPublisher());
+        IntegrateAction ia = assertBuildStatusSuccess(build()).getAction(IntegrateAction.class);
+        assertTrue(ia.isIntegrated());
+
+        FreeStyleBuild tb = assertBuildStatusSuccess(trunk.scheduleBuild2(0));
+        UpstreamBuildIndex.of(trunk).waitForLoad();
+        assertEquals(tb.getNumber(), UpstreamBuildIndex.of(trunk).getFirstBuildContaining(ia.getIntegratedRevision()));
+        assertEquals(-1, UpstreamBuildIndex.of(trunk).getFirstBuildContaining(ia.getIntegratedRevision()+1));
+        assertEquals(tb.getNumber(), ia.getUpstreamBuildNumber());
+    }
+
     /**
      * Verify that there's trunk/e, which is created by {@link #nonCollidingChange}.
      */
+    private SVNNodeKind getTrunkNodeKind(String path) throws SVNException {
+        SVNRepository rep = SVNRepositoryFactory.create(upp.getUpstreamURL());
+        return rep.checkPath(path, rep.getLatestRevision());
+    }
+
     private boolean trunkHasE() throws SVNException {
         // make sure the merge went in by checking if /trunk/e exists.
         SVNRepository rep = SVNRepositoryFactory.create(upp.getUpstreamURL());
@@ -148,6 +373,138 @@ public class MergeTest extends HudsonTestCase {
         assertEquals(MAGIC_CONTENT,IOUtils.toString(p.getModuleRoot().child("d").read()));
     }
 
+    /**
+     * Same as {@link #testUpstreamMerge()}, but without switching the workspace.
+     */
+    public void testUpstreamMergeSparse() throws Exception {
+        upp.setIntegrationEngine(IntegrationEngineEnum.SPARSE);
+        commitAndUpdate("branches/b1/e");   // make a non-conflicting change in the branch
+
+        p.addPublisher(new IntegrationPublisher());
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+
+        assertTrue(trunkHasE());
+
+        // the integration is recorded in the branch, so the next rebase shouldn't bring it back
+        long commit = b.getAction(IntegrateAction.class).getIntegratedRevision();
+        SVNURL branchURL = SVNURL.parseURIDecoded("file://"+new URL(repo,"branches/b1").getPath());
+        SVNURL trunkURL = SVNURL.parseURIDecoded("file://"+new URL(repo,"trunk").getPath());
+        assertTrue(MergeInfoIndex.of(cm.getDiffClient().doGetMergedMergeInfo(branchURL, HEAD)).isMerged(trunkURL, commit));
+        commitAndUpdate("trunk/step1");
+        assertTrue(upp.rebase(TaskListener.NULL, -1)>0);
+    }
+
+    /**
+     * Files that the branch adds deep in the tree must make it to the upstream, even though
+     * the sparse working copy doesn't have their directories until they are brought in.
+     */
+    public void testUpstreamMergeSparseDeep() throws Exception {
+        upp.setIntegrationEngine(IntegrationEngineEnum.SPARSE);
+        File x = new File(ws, "trunk/x");
+        FileUtils.writeStringToFile(new File(x, "y/z"), MAGIC_CONTENT);
+        cm.getWCClient().doAdd(x,false,false,false, INFINITY,false,false);
+        cm.getCommitClient().doCommit(new File[]{x}, false, "edit", null, null, false, false, INFINITY);
+        cm.getUpdateClient().doUpdate(ws, HEAD, INFINITY, false, true);
+        assertTrue(upp.rebase(TaskListener.NULL, -1)>0);
+
+        cm.getUpdateClient().doUpdate(ws, HEAD, INFINITY, false, true);
+        commitAndUpdate("branches/b1/x/y/w");
+
+        p.addPublisher(new IntegrationPublisher());
+        assertBuildStatusSuccess(build());
+
+        assertEquals(SVNNodeKind.FILE, getTrunkNodeKind("x/y/w"));
+    }
+
+    /**
+     * When another commit lands on the upstream between the merge and its commit,
+     * the merge is done again on top of it and the commit is retried.
+     */
+    public void testCommitRetriedWhenUpstreamMoves() throws Exception {
+        commitAndUpdate("branches/b1/e");   // make a non-conflicting change in the branch
+
+        File wc = env.temporaryDirectoryAllocator.allocate();
+        SVNClientManager cm = SubversionSCM.createSvnClientManager(trunk);
+        SVNURL branch = SVNURL.parseURIDecoded("file://"+new URL(repo,"branches/b1").getPath());
+        cm.getUpdateClient().doCheckout(upp.getUpstreamURL(), wc, HEAD, HEAD, INFINITY, false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(out,true);
+        MergeEventHandler handler = new MergeEventHandler(logger, wc, false, false, null);
+        cm.setEventHandler(handler);
+        handler.mergeStarted();
+        cm.getDiffClient().doMergeReIntegrate(branch, HEAD, wc, false);
+        handler.mergeFinished();
+
+        // someone else commits to the upstream in the mean time
+        commitAndUpdate("trunk/f");
+
+        assertNotNull(FeatureBranchProperty.commitWithRetry(cm, handler, wc, branch, HEAD, "integrate", 1, 0, logger));
+        assertTrue(out.toString(), out.toString().contains("The upstream has changed since the merge"));
+        assertTrue(trunkHasE());
+        assertEquals(SVNNodeKind.FILE, getTrunkNodeKind("f"));
+    }
+
+    /**
+     * Change log annotations remember where integration commits came from, including the ones
+     * that didn't come from any known build, until the next integration.
+     */
+    public void testChangeLogAnnotationCache() throws Exception {
+        commitAndUpdate("branches/b1/e");   // make a non-conflicting change in the branch
+        p.addPublisher(new IntegrationPublisher());
+
+        // the commit that the next integration is going to make
+        SubversionChangeLogSet.LogEntry e = new SubversionChangeLogSet.LogEntry();
+        e.setRevision((int)SVNRepositoryFactory.create(upp.getUpstreamURL()).getLatestRevision()+1);
+        e.setMsg(IntegrateAction.COMMIT_MESSAGE_PREFIX+p.getFullDisplayName()+" #"+p.getNextBuildNumber()
+                +IntegrateAction.COMMIT_MESSAGE_SUFFIX+"\n"+upp.getUpstreamURL());
+        FreeStyleBuild b = assertBuildStatusSuccess(trunk.scheduleBuild2(0));
+        assertEquals(ChangeLogAnnotatorImpl.NONE, ChangeLogAnnotatorImpl.getIntegratedBuildUrl(b, e));
+
+        // the integration invalidates the negative answer
+        FreeStyleBuild i = assertBuildStatusSuccess(build());
+        assertEquals(e.getRevision(), i.getAction(IntegrateAction.class).getIntegratedRevision().intValue());
+        assertEquals(i.getUrl(), ChangeLogAnnotatorImpl.getIntegratedBuildUrl(b, e));
+
+        // the answer doesn't outlive the build
+        i.delete();
+        assertEquals(ChangeLogAnnotatorImpl.NONE, ChangeLogAnnotatorImpl.getIntegratedBuildUrl(b, e));
+    }
+
+    /**
+     * Same as {@link #testUpstreamConflict()}, but without switching the workspace.
+     */
+    public void testUpstreamConflictSparse() throws Exception {
+        upp.setIntegrationEngine(IntegrationEngineEnum.SPARSE);
+        commitAndUpdate("branches/b1/d");   // make a conflicting change in the branch
+
+        p.addPublisher(new IntegrationPublisher());
+
+        FreeStyleBuild build = build();
+        assertBuildStatus(Result.FAILURE, build);
+        assertLogContains("Found conflict with the upstream",build);
+
+        // the workspace was never touched
+        assertEquals(MAGIC_CONTENT,IOUtils.toString(p.getModuleRoot().child("d").read()));
+    }
+
+    /**
+     * Integrations should reuse the working copy of the upstream on the node.
+     */
+    public void testUpstreamMergePooled() throws Exception {
+        upp.setIntegrationEngine(IntegrationEngineEnum.POOLED);
+        p.addPublisher(new IntegrationPublisher());
+
+        commitAndUpdate("branches/b1/e");   // make a non-conflicting change in the branch
+        FreeStyleBuild b = assertBuildStatusSuccess(build());
+        assertLogContains("Checking out the upstream",b);
+        assertTrue(trunkHasE());
+
+        commitAndUpdate("branches/b1/f");
+        b = assertBuildStatusSuccess(build());
+        assertLogContains("Updating the working copy of the upstream",b);
+    }
+
     /**
      * Tests manual integration.
      */
@@ -165,7 +522,38 @@ public class MergeTest extends HudsonTestCase {
 
         p.getBuildersList().clear();
         b = assertBuildStatusSuccess(build());
-        integrateManually(b);
+        String msg = integrateManually(b);
+        assertTrue(trunkHasE());
+        // the task trusted the check made before queueing
+        assertTrue(msg, msg.contains("Found changes to integrate before queueing"));
+        assertFalse(msg, msg.contains("Found a change to integrate in rev."));
+    }
+
+    /**
+     * A manual integration that's queued while another integration is in progress doesn't take a place in line,
+     * so a build that gets in line in the mean time doesn't wait for it while holding the workspace it needs.
+     */
+    public void testQueuedIntegrationAndPublisherOverlap() throws Exception {
+        commitAndUpdate("branches/b1/e");
+        FreeStyleBuild b1 = assertBuildStatusSuccess(build());
+
+        // another integration into the trunk is in progress
+        IntegrationQueue q = IntegrationQueue.of(trunk);
+        IntegrationQueue.Ticket other = q.enter("other", TaskListener.NULL);
+
+        // a manual integration waits in the Jenkins queue, then a build that integrates gets in line
+        Future<IntegrateAction.WorkerThread> manual = b1.getAction(IntegrateAction.class).performAsync(new IntegrateSetting());
+        commitAndUpdate("branches/b1/f");
+        p.addPublisher(new IntegrationPublisher());
+        Future<FreeStyleBuild> b2 = p.scheduleBuild2(0);
+        while (q.getDepth()<2)
+            Thread.sleep(10);
+        assertEquals(1, jenkins.getQueue().getItems().length);
+
+        other.leave();
+        assertBuildStatusSuccess(b2.get(60, TimeUnit.SECONDS));
+        assertNotNull(manual.get(60, TimeUnit.SECONDS));
+        assertEquals(0, q.getDepth());
         assertTrue(trunkHasE());
     }
 
@@ -211,6 +599,157 @@ public class MergeTest extends HudsonTestCase {
         assertBuildStatusSuccess(build());
     }
 
+    /**
+     * Second rebase should only merge the upstream changes made since the first one.
+     */
+    public void testIncrementalRebase() throws Exception {
+        assertBuildStatusSuccess(build());
+
+        commitAndUpdate("trunk/step1");
+        assertTrue(upp.rebase(TaskListener.NULL, -1)>0);
+        assertTrue(upp.getState().getLastRebasedRevision(upp.getUpstreamSubversionLocation().getURL())>0);
+
+        commitAndUpdate("trunk/step2");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(upp.rebase(new StreamTaskListener(out), -1)>0);
+        assertTrue(out.toString(), out.toString().contains("Merging only the changes after"));
+
+        // now that we are up to date, another rebase is a no-op
+        assertFalse(upp.isRebaseNeeded(-1));
+        commitAndUpdate("trunk/step3");
+        assertTrue(upp.isRebaseNeeded(-1));
+    }
+
+    /**
+     * Pending upstream commits are counted from the parsed svn:mergeinfo of the branch.
+     * The pages only see the count as of the last update.
+     */
+    public void testPendingUpstreamRevisions() throws Exception {
+        assertBuildStatusSuccess(build());
+        commitAndUpdate("trunk/step1");
+        assertTrue(upp.rebase(new StreamTaskListener(new ByteArrayOutputStream()), -1)>0);
+        upp.updateMergeStatus();
+        assertEquals(0, upp.getPendingUpstreamRevisions());
+
+        commitAndUpdate("trunk/step2");
+        commitAndUpdate("trunk/step3");
+        assertEquals(0, upp.getPendingUpstreamRevisions());
+        upp.updateMergeStatus();
+        assertEquals(2, upp.getPendingUpstreamRevisions());
+        assertTrue(upp.isRebaseNeeded(-1));
+    }
+
+    /**
+     * By default, the merge log lists every file. The compact log lists the added files and counts the rest.
+     */
+    public void testCompactMergeLog() throws Exception {
+        assertBuildStatusSuccess(build());
+        assertTrue(upp.isVerboseMergeLog());
+
+        commitAndUpdate("trunk/step1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(upp.rebase(new StreamTaskListener(out), -1)>0);
+        assertTrue(out.toString().contains("step1"));
+        assertFalse(out.toString().contains("Summary: "));
+
+        upp.setVerboseMergeLog(false);
+        commitAndUpdate("trunk/step2");
+        out = new ByteArrayOutputStream();
+        assertTrue(upp.rebase(new StreamTaskListener(out), -1)>0);
+        assertTrue(out.toString().contains("step2"));
+        assertTrue(out.toString().contains("Summary: "));
+    }
+
+    /**
+     * Aborting a rebase stops it between Subversion events, and says what it was doing.
+     * The workspace is left usable for the next one.
+     */
+    public void testAbortedRebase() throws Exception {
+        assertBuildStatusSuccess(build());
+
+        commitAndUpdate("trunk/step1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread.currentThread().interrupt();
+        try {
+            upp.rebase(new StreamTaskListener(out), -1);
+            fail("should have been aborted");
+        } catch (InterruptedException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Aborted while "));
+        } finally {
+            Thread.interrupted();
+        }
+
+        out = new ByteArrayOutputStream();
+        assertTrue(upp.rebase(new StreamTaskListener(out), -1)>0);
+    }
+
+    /**
+     * In the fail-fast mode, a merge stops at the first conflict, and the workspace is reverted.
+     */
+    public void testFailFastMerge() throws Exception {
+        assertBuildStatusSuccess(build());
+        commitAndUpdate("trunk/g");
+        commitAndUpdate("trunk/h");
+        commitAndUpdate("branches/b1/g");
+        commitAndUpdate("branches/b1/h");
+
+        upp.setFailFastMerge(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(-1, upp.rebase(new StreamTaskListener(out), -1));
+        String log = out.toString();
+        assertTrue(log, log.contains("Stopped merging at the first conflict"));
+        assertEquals(log, 1, StringUtils.countMatches(log, "Conflict: "));
+        assertEquals(Collections.emptyList(), getLocalChanges(new File(p.getModuleRoot().getRemote())));
+    }
+
+    /**
+     * A failed merge only reverts the paths that it touched, and deletes the files that it added.
+     * Other local changes in the workspace are left alone.
+     */
+    public void testTargetedRevert() throws Exception {
+        assertBuildStatusSuccess(build());
+        commitAndUpdate("trunk/g");
+        commitAndUpdate("trunk/h");
+        commitAndUpdate("branches/b1/g");
+
+        FilePath mr = p.getModuleRoot();
+        mr.child("a").write("local change", "UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(-1, upp.rebase(new StreamTaskListener(out), -1));
+        String log = out.toString();
+        assertFalse(log, log.contains("Reverting the whole workspace"));
+
+        assertFalse(mr.child("h").exists());
+        assertEquals("local change", mr.child("a").readToString());
+        assertEquals(Arrays.asList("a"), getLocalChanges(new File(mr.getRemote())));
+    }
+
+    /**
+     * If the merge didn't report what it touched, the whole working copy is reverted.
+     */
+    public void testRevertFallsBackToWholeTree() throws Exception {
+        FileUtils.writeStringToFile(new File(ws, "trunk/a"), "local change");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MergeEventHandler h = new MergeEventHandler(new PrintStream(out, true), ws, false, false, null);
+        h.revert(cm, ws);
+
+        assertTrue(out.toString(), out.toString().contains("Reverting the whole workspace"));
+        assertEquals(Collections.emptyList(), getLocalChanges(ws));
+    }
+
+    /**
+     * Lists the paths in the given working copy that have local changes, or aren't under version control.
+     */
+    private List<String> getLocalChanges(File dir) throws SVNException {
+        final List<String> r = new ArrayList<String>();
+        cm.getStatusClient().doStatus(dir, SVNRevision.WORKING, INFINITY, false, false, false, false, new ISVNStatusHandler() {
+            public void handleStatus(SVNStatus s) throws SVNException {
+                r.add(s.getFile().getName());
+            }
+        }, null);
+        return r;
+    }
+
     private void commitAndUpdate(String path) throws SVNException, IOException {
         File f = new File(ws, path);
         FileUtils.writeStringToFile(f,MAGIC_CONTENT);